@@ -0,0 +1,178 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package benchmark;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * This class implements a small throughput benchmark harness (warmup and measured iterations of a fixed duration,
+ * result sink against dead code elimination) that writes its results as JSON, so runs can be compared between releases.
+ * <p>
+ * Settings are read from system properties: bench.warmup (iterations, default 3), bench.iterations (default 5),
+ * bench.time (milliseconds per iteration, default 1000) and bench.filter (regex on the benchmark name).
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class Bench {
+
+    /**
+     * Operation to be measured. The returned value is consumed so the JIT cannot discard the work.
+     */
+    public interface Op {
+
+        /**
+         * Runs the operation once.
+         *
+         * @return any result of the operation.
+         * @throws Exception
+         */
+        Object run() throws Exception;
+    }
+
+    /**
+     * Number of warmup iterations.
+     */
+    private final int warmup = Integer.getInteger("bench.warmup", 3);
+    /**
+     * Number of measured iterations.
+     */
+    private final int iterations = Integer.getInteger("bench.iterations", 5);
+    /**
+     * Duration of each iteration, in milliseconds.
+     */
+    private final long time = Long.getLong("bench.time", 1000);
+    /**
+     * Only benchmarks whose name matches are run.
+     */
+    private final Pattern filter = Pattern.compile(System.getProperty("bench.filter", ".*"));
+    /**
+     * Results, as JSON objects.
+     */
+    private final List<String> results = new ArrayList<>();
+    /**
+     * Sink for the results of the operations.
+     */
+    private int sink;
+
+    /**
+     * Method to check if a benchmark is selected by bench.filter (to skip expensive setups).
+     *
+     * @param name benchmark name.
+     * @return true if the benchmark will run.
+     */
+    public boolean isSelected(String name) {
+        return filter.matcher(name).find();
+    }
+
+    /**
+     * Method to run a benchmark and keep its result.
+     *
+     * @param name benchmark name.
+     * @param params parameters of the benchmark (for the report).
+     * @param op operation to measure.
+     * @throws Exception
+     */
+    public void run(String name, Map<String, Object> params, Op op) throws Exception {
+        if (!isSelected(name)) {
+            return;
+        }
+        for (int i = 0; i < warmup; i++) {
+            iteration(op);
+        }
+        double[] samples = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            samples[i] = iteration(op);
+        }
+        //mean and standard deviation
+        double mean = 0;
+        for (double sample : samples) {
+            mean += sample;
+        }
+        mean /= samples.length;
+        double var = 0;
+        for (double sample : samples) {
+            var += (sample - mean) * (sample - mean);
+        }
+        double error = samples.length > 1 ? Math.sqrt(var / (samples.length - 1)) : 0;
+        System.out.printf("%-40s %-30s %14.1f ops/s  +- %.1f%n", name, params, mean, error);
+        //json entry
+        StringBuilder json = new StringBuilder();
+        json.append("  {\"benchmark\": \"").append(name).append("\", \"mode\": \"thrpt\", \"unit\": \"ops/s\", \"params\": {");
+        String sep = "";
+        for (Map.Entry<String, Object> e : params.entrySet()) {
+            json.append(sep).append('"').append(e.getKey()).append("\": \"").append(e.getValue()).append('"');
+            sep = ", ";
+        }
+        json.append("}, \"score\": ").append(mean).append(", \"error\": ").append(error).append(", \"samples\": [");
+        for (int i = 0; i < samples.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(samples[i]);
+        }
+        json.append("]}");
+        results.add(json.toString());
+    }
+
+    /**
+     * Method to run the operation for one iteration.
+     *
+     * @param op operation.
+     * @return operations per second.
+     * @throws Exception
+     */
+    private double iteration(Op op) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + time * 1_000_000;
+        long now;
+        do {
+            Object r = op.run();
+            sink += r == null ? 0 : System.identityHashCode(r);
+            ops++;
+            now = System.nanoTime();
+        } while (now < end);
+        return ops * 1e9 / (now - start);
+    }
+
+    /**
+     * Method to build a parameter map.
+     *
+     * @param keyValues pairs of key and value.
+     * @return parameter map.
+     */
+    public static Map<String, Object> params(Object... keyValues) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            map.put(keyValues[i].toString(), keyValues[i + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * Method to write the results as a JSON array.
+     *
+     * @param fileName output file.
+     * @throws IOException
+     */
+    public void writeJson(String fileName) throws IOException {
+        try (Writer out = new FileWriter(fileName)) {
+            out.write("[\n" + String.join(",\n", results) + "\n]\n");
+        }
+        System.out.println("results written to " + fileName + " (sink " + sink + ")");
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+import benchmark.Bench;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import utils.Curriculum;
+import utils.User;
+
+/**
+ * Benchmarks for the hot paths of the blockchain: hashing, block hashes, merkle trees, chain append/validation, the
+ * block log and the binary codecs (compared with Java serialization). This class lives in the blockchain package to build large low-difficulty chains without mining
+ * them at the real difficulty.
+ * <p>
+ * Usage (from the project folder, after building the application classes):
+ * <pre>
+ * javac -cp build/classes -d build/bench $(find bench -name "*.java")
+ * java -cp build/classes:build/bench blockchain.ChainBenchmarks [results.json]
+ * </pre>
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class ChainBenchmarks {
+
+    /**
+     * Hash algorithms compared in the hashing benchmark.
+     */
+    static final String[] ALGORITHMS = {"SHA3-512", "SHA-256", "SHA-512/256"};
+
+    /**
+     * Leaf counts of the merkle tree benchmarks.
+     */
+    static final int[] LEAVES = {4, 1_000, 100_000};
+
+    /**
+     * Leaf counts of the sequential vs parallel merkle tree benchmark (around MerkleTree.PARALLEL_THRESHOLD).
+     */
+    static final int[] PARALLEL_LEAVES = {1_024, 2_048, 4_096, 16_384, 65_536, 262_144};
+
+    /**
+     * Chain sizes of the chain benchmarks.
+     */
+    static final int[] CHAIN_SIZES = {10_000, 100_000};
+
+    /**
+     * Runs all benchmarks and writes the results.
+     *
+     * @param args optional output file (default bench-results.json).
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench();
+        hashing(bench);
+        blocks(bench);
+        merkleTrees(bench);
+        chains(bench);
+        logs(bench);
+        codecs(bench);
+        bench.writeJson(args.length > 0 ? args[0] : "bench-results.json");
+    }
+
+    static void hashing(Bench bench) throws Exception {
+        String original = Miner.hashAlgorithm;
+        String data = "A".repeat(88) + "1A2B3C4D";
+        try {
+            for (String algorithm : ALGORITHMS) {
+                Miner.hashAlgorithm = algorithm;
+                long[] nonce = {0};
+                bench.run("Miner.getHash", Bench.params("algorithm", algorithm), () -> Miner.getHash(data, ++nonce[0]));
+            }
+        } finally {
+            Miner.hashAlgorithm = original;
+        }
+    }
+
+    static void blocks(Bench bench) throws Exception {
+        Block b = mine(new Block(Miner.getHash("genesis", 0), transactions(0, 4), 1, 0, null));
+        bench.run("Block.calculateHash", Bench.params(), b::calculateHash);
+    }
+
+    static void merkleTrees(Bench bench) throws Exception {
+        for (int leaves : LEAVES) {
+            List<String> data = transactions(0, leaves);
+            String element = data.get(leaves / 2);
+            bench.run("MerkleTree.new", Bench.params("leaves", leaves), () -> new MerkleTree(data));
+            MerkleTree tree = new MerkleTree(data);
+            bench.run("MerkleTree.getProof", Bench.params("leaves", leaves), () -> tree.getProof(element));
+            MerkleProof proof = tree.getProof(element);
+            bench.run("MerkleTree.isProofValid", Bench.params("leaves", leaves), () -> MerkleTree.isProofValid(element, proof));
+        }
+        //same trees built on one thread and with fork-join (every level in parallel)
+        for (int leaves : PARALLEL_LEAVES) {
+            if (!bench.isSelected("MerkleTree.build")) {
+                return;
+            }
+            List<String> data = transactions(0, leaves);
+            bench.run("MerkleTree.build", Bench.params("leaves", leaves, "mode", "sequential"),
+                    () -> new MerkleTree(data, MerkleTree.Digest.SHA256, Integer.MAX_VALUE));
+            bench.run("MerkleTree.build", Bench.params("leaves", leaves, "mode", "parallel",
+                    "threads", ForkJoinPool.getCommonPoolParallelism()),
+                    () -> new MerkleTree(data, MerkleTree.Digest.SHA256, 1));
+        }
+    }
+
+    static void chains(Bench bench) throws Exception {
+        for (int size : CHAIN_SIZES) {
+            if (!bench.isSelected("BlockChain")) {
+                return;
+            }
+            BlockChain chain = buildChain(size + 1);
+            Block next = chain.get(size);
+            chain.truncate(size);
+            bench.run("BlockChain.add", Bench.params("blocks", size), () -> {
+                chain.add(next);
+                chain.truncate(size);
+                return next;
+            });
+            String middle = chain.get(size / 2).getCurrentHash();
+            bench.run("BlockChain.getByHash", Bench.params("blocks", size), () -> chain.getByHash(middle));
+            bench.run("BlockChain.revalidate", Bench.params("blocks", size), chain::revalidate);
+            chain.isValid();
+            bench.run("BlockChain.isValid", Bench.params("blocks", size, "mode", "incremental"), () -> {
+                chain.chain.add(next);
+                boolean valid = chain.isValid();
+                chain.truncate(size);
+                return valid;
+            });
+        }
+    }
+
+    static void logs(Bench bench) throws Exception {
+        if (!bench.isSelected("BlockLog")) {
+            return;
+        }
+        List<Block> blocks = buildChain(1_000).getChain();
+        Path directory = Files.createTempDirectory("bench-log");
+        try (BlockLog log = new BlockLog(directory.toString())) {
+            int[] next = {0};
+            bench.run("BlockLog.append", Bench.params("sync", false), () -> log.append(blocks.get(next[0]++ % blocks.size())));
+            bench.run("BlockLog.append", Bench.params("sync", true), () -> {
+                long position = log.append(blocks.get(next[0]++ % blocks.size()));
+                log.sync(position);
+                return position;
+            });
+            //the appended blocks only keep their headers, bring the transactions back before emptying the log
+            blocks.forEach(Block::attach);
+            log.truncate(0);
+            log.appendAll(blocks);
+            bench.run("BlockLog.readAll", Bench.params("blocks", blocks.size()), log::readAll);
+            bench.run("Block.transactions", Bench.params("mode", "lazy"), () -> blocks.get(next[0]++ % blocks.size()).transactions());
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+        }
+    }
+
+    static void codecs(Bench bench) throws Exception {
+        //curriculum signed by a generated registrant, like the ones in the blocks
+        User registrant = new User("IPT");
+        registrant.generateKeys();
+        User owner = new User("owner");
+        owner.generateKeys();
+        byte[] ownerPub = owner.getPubKey().getEncoded();
+        Curriculum c = new Curriculum(registrant, owner.getUserName(), ownerPub, "Bachelor in Computer Engineering, IPT 2024");
+        codec(bench, "Curriculum", "binary", c.toByteArr(), c::toByteArr, Curriculum::fromByteArr);
+        codec(bench, "Curriculum", "java", serialize(c), () -> serialize(c), Curriculum::fromByteArr);
+        //block with 16 curricula
+        List<String> curricula = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            Curriculum signed = new Curriculum(registrant, owner.getUserName(), ownerPub, "Curriculum " + i);
+            curricula.add(Base64.getEncoder().encodeToString(signed.toByteArr()));
+        }
+        Block b = mine(new Block(Miner.getHash("genesis", 0), curricula, 1, 1_700_000_000_000L, null));
+        LegacyBlock legacy = new LegacyBlock(b);
+        codec(bench, "Block", "binary", b.toBytes(), b::toBytes, Block::fromBytes);
+        codec(bench, "Block", "java", serialize(legacy), () -> serialize(legacy), ChainBenchmarks::deserialize);
+        //merkle tree of the block
+        MerkleTree tree = new MerkleTree(curricula);
+        codec(bench, "MerkleTree", "binary", tree.toBytes(), tree::toBytes, MerkleTree::fromBytes);
+        codec(bench, "MerkleTree", "java", serialize(tree), () -> serialize(tree), MerkleTree::fromBytes);
+    }
+
+    /**
+     * Runs the encode and decode benchmarks of a format.
+     */
+    static void codec(Bench bench, String type, String format, byte[] bytes, Bench.Op encode, Decoder decode) throws Exception {
+        bench.run("Codec.encode", Bench.params("type", type, "format", format, "bytes", bytes.length), encode);
+        bench.run("Codec.decode", Bench.params("type", type, "format", format, "bytes", bytes.length), () -> decode.decode(bytes));
+    }
+
+    /**
+     * Decoder of a format.
+     */
+    interface Decoder {
+
+        Object decode(byte[] bytes) throws Exception;
+    }
+
+    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    //:::::::::::::::::::::::::::   S E T U P            :::::::::::::::::::::::
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Builds a valid chain with difficulty 1 and blocks exactly TARGET_BLOCK_TIME apart (so the difficulty never changes).
+     *
+     * @param size number of blocks.
+     * @return chain.
+     * @throws Exception
+     */
+    static BlockChain buildChain(int size) throws Exception {
+        BlockChain chain = new BlockChain(1);
+        List<Block> blocks = new ArrayList<>(size);
+        String previous = chain.getLastBlockHash();
+        long time = 1_700_000_000_000L;
+        for (int i = 0; i < size; i++) {
+            Block b = mine(new Block(previous, transactions(i * 4, 4), 1, time + i * BlockChain.TARGET_BLOCK_TIME, null));
+            blocks.add(b);
+            previous = b.getCurrentHash();
+        }
+        chain.chain.addAll(blocks);
+        chain.reindex();
+        if (!chain.isValid()) {
+            throw new IllegalStateException("benchmark chain is not valid");
+        }
+        return chain;
+    }
+
+    /**
+     * Finds the nonce of a low difficulty block by brute force.
+     *
+     * @param b block.
+     * @return the block.
+     */
+    static Block mine(Block b) {
+        for (long nonce = 1;; nonce++) {
+            try {
+                b.setNonce(nonce);
+                return b;
+            } catch (Exception ex) {
+                //try the next one
+            }
+        }
+    }
+
+    /**
+     * Serializes an object with ObjectOutputStream.
+     *
+     * @param object object.
+     * @return bytes.
+     * @throws IOException
+     */
+    static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads an object with ObjectInputStream.
+     *
+     * @param bytes bytes.
+     * @return object.
+     * @throws Exception
+     */
+    static Object deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Same fields as the Block, serialized as blocks were before the binary format (the baseline of the codec benchmark).
+     */
+    static final class LegacyBlock implements Serializable {
+
+        String previousHash;
+        String merkleRoot;
+        List<String> transactions;
+        int nonce;
+        long extraNonce;
+        String currentHash;
+        long timestamp;
+        int difficulty;
+
+        LegacyBlock(Block b) {
+            previousHash = b.previousHash;
+            merkleRoot = b.merkleRoot;
+            transactions = new ArrayList<>(b.transactions());
+            nonce = b.nonce;
+            extraNonce = b.extraNonce;
+            currentHash = b.currentHash;
+            timestamp = b.timestamp;
+            difficulty = b.difficulty;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Builds a list of distinct transactions.
+     *
+     * @param first index of the first transaction.
+     * @param count number of transactions.
+     * @return transactions.
+     */
+    static List<String> transactions(int first, int count) {
+        List<String> list = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            list.add("transaction-" + i);
+        }
+        return list;
+    }
+
+}
@@ -10,12 +10,21 @@
  */
 package blockchain;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import utils.BinaryReader;
+import utils.BinaryWriter;
 
 /**
  * This class implements a "Block" in the Blockchain environment. 
@@ -34,55 +43,113 @@ public class Block implements Serializable, Comparable<Block> {
      */
     String merkleRoot;   
     /**
-     * List of transactions contained in the block.
+     * List of transactions contained in the block (null while they are only in the block log).
      */
-    List<String> transactions; 
+    volatile List<String> transactions;
+    /**
+     * Log where the transactions of the block are stored (null while they are in memory).
+     */
+    transient BlockLog store;
+    /**
+     * Height of the block in the log.
+     */
+    transient int storeHeight;
+    /**
+     * True if the transactions of the block were pruned (only the header and the merkle root are kept).
+     */
+    transient boolean pruned;
     /**
      * Nonce mined for the block (Proof of Work).
      */
     int nonce; 
+    /**
+     * Extra nonce used when the 31 bits of the nonce were exhausted (zero for most blocks).
+     */
+    long extraNonce;
     /**
      * Hash of the Block.
      */
     String currentHash;
+    /**
+     * Creation time of the block (milliseconds since the epoch). Zero in blocks created before timestamps were introduced.
+     */
+    long timestamp;
+    /**
+     * Number of leading zero bits the block's hash must have (Proof of Work target).
+     */
+    int difficulty;
+
+    /**
+     * Number of leading Base64 '0' characters required in the hash of blocks without a timestamp (legacy blocks).
+     */
+    public static final int LEGACY_ZEROS = 4;
+
+    /**
+     * Type of the binary records of blocks.
+     */
+    static final byte RECORD_TYPE = 'B';
+    /**
+     * Version of the fields written by toBytes() (version 2 added the pruned flag).
+     */
+    static final int RECORD_VERSION = 2;
     
     /**
-     * Constructor for the Block. This method will create the block and the MerkleTree (which will be saved as a .mkt file in the server).
+     * Constructor for the Block. This method will create the block and the MerkleTree (which will be saved in the node's MerkleStore).
      * 
      * @param previousHash Hash of the previous block in the chain.
      * @param transactions List of transactions that will compose the block.
-     * @throws IOException Error in saving the mkt file.
+     * @param difficulty Number of leading zero bits the block's hash must have.
+     * @param trees Store where the MerkleTree is saved.
+     * @throws IOException Error in saving the tree.
      */
-    public Block(String previousHash, List<String> transactions) throws IOException {
+    public Block(String previousHash, List<String> transactions, int difficulty, MerkleStore trees) throws IOException {
+        this(previousHash, transactions, difficulty, System.currentTimeMillis(), trees);
+    }
+
+    /**
+     * Constructor for a Block with a given creation time, optionally without saving the MerkleTree (used to build chains in benchmarks).
+     * 
+     * @param previousHash Hash of the previous block in the chain.
+     * @param transactions List of transactions that will compose the block.
+     * @param difficulty Number of leading zero bits the block's hash must have.
+     * @param timestamp Creation time of the block.
+     * @param trees Store where the MerkleTree is saved (null to not save it).
+     * @throws IOException Error in saving the tree.
+     */
+    Block(String previousHash, List<String> transactions, int difficulty, long timestamp, MerkleStore trees) throws IOException {
         //set reference to previous block
         this.previousHash = previousHash;
         //set transaction list
         this.transactions = transactions;
+        //set creation time and target
+        this.timestamp = timestamp;
+        this.difficulty = difficulty;
         //create mktree with the transactions
         MerkleTree mkt = new MerkleTree(transactions);
         //set the merkle root.
         this.merkleRoot = mkt.getRoot();
-        //save merke tree in it's respective file
-        mkt.saveToFile(merkleRoot + ".mkt");
+        //save merke tree in the store
+        if (trees != null) {
+            trees.put(mkt);
+        }
     }
 
     /**
-     * Method that will set the nonce for the block. The nonce will be checked here to see if it's valid.
+     * Method that will set the nonce for the block. The nonce will be checked here against the block's difficulty.
      * This will also set the current hash of the block.
      * 
-     * @param nonce Nonce to be set.
-     * @param zeros Amount of zeros to verify the nonce with.
+     * @param nonce Nonce to be set, as returned by the Miner (may carry an extra nonce).
      * @throws Exception 
      */
-    public void setNonce(int nonce, int zeros) throws Exception {
-        //set the nonce
-        this.nonce = nonce;
+    public void setNonce(long nonce) throws Exception {
+        //set the nonce and the extra nonce
+        this.nonce = Miner.getBlockNonce(nonce);
+        this.extraNonce = Miner.getExtraNonce(nonce);
         //calculate and set the hash of the block
         this.currentHash = calculateHash();
         
         //check if the hash is valid
-        String prefix = String.format("%0" + zeros + "d", 0);
-        if (!currentHash.startsWith(prefix)) {
+        if (!meetsTarget()) {
             throw new Exception(nonce + " not valid Hash=" + currentHash);
         }
         
@@ -90,11 +157,61 @@ public class Block implements Serializable, Comparable<Block> {
 
     /**
      * Getter for the data used in the mining process, to find the valid nonce.
+     * The timestamp and difficulty are part of the data, so they are covered by the Proof of Work.
      * 
      * @return data to mine. 
      */
     public String getMinerData() {
-        return previousHash + merkleRoot;
+        if (isLegacy()) {
+            return previousHash + merkleRoot;
+        }
+        return previousHash + merkleRoot + "|" + timestamp + "|" + difficulty + "|";
+    }
+
+    /**
+     * Method to check if the block was created before timestamps and bit targets were introduced.
+     * 
+     * @return true for legacy blocks.
+     */
+    public boolean isLegacy() {
+        return timestamp == 0;
+    }
+
+    /**
+     * Getter for the digest of the block's merkle tree: blocks without timestamp have a legacy root, every other block a
+     * SHA-256 root (the length of the root is not trusted).
+     * 
+     * @return digest of the merkle tree.
+     */
+    public MerkleTree.Digest getDigest() {
+        return isLegacy() ? MerkleTree.Digest.LEGACY : MerkleTree.Digest.SHA256;
+    }
+
+    /**
+     * Method to check if the block's hash meets its target. Legacy blocks need LEGACY_ZEROS Base64 '0' characters,
+     * other blocks need as many leading zero bits as their difficulty.
+     * 
+     * @return true if the Proof of Work is valid.
+     */
+    public boolean meetsTarget() {
+        if (currentHash == null) {
+            return false;
+        }
+        byte[] hash = Base64.getDecoder().decode(currentHash);
+        if (isLegacy()) {
+            return Miner.hasZeros(hash, LEGACY_ZEROS);
+        }
+        return Miner.hasLeadingZeroBits(hash, difficulty);
+    }
+
+    /**
+     * Getter for the work of the block: the expected number of hashes to meet its target (2^difficulty, each legacy zero
+     * counts 6 bits).
+     * 
+     * @return work of the block.
+     */
+    public BigInteger getWork() {
+        return BigInteger.ONE.shiftLeft(isLegacy() ? 6 * LEGACY_ZEROS : difficulty);
     }
 
     /**
@@ -107,12 +224,76 @@ public class Block implements Serializable, Comparable<Block> {
     }
 
     /**
-     * Getter for the transaction list of the block.
+     * Getter for the transaction list of the block. If only the header of the block is in memory, the transactions are
+     * read from the block log.
      * 
      * @return transaction list.
      */
     public List<String> transactions() {
-        return transactions;
+        List<String> body = transactions;
+        if (body != null) {
+            return body;
+        }
+        if (isPruned()) {
+            throw new IllegalStateException("The transactions of block " + currentHash + " were pruned");
+        }
+        return store.getTransactions(storeHeight, currentHash);
+    }
+
+    /**
+     * Method to check if the transactions of the block were pruned (see BlockLog.prune). They can only be obtained from a
+     * node that keeps every block.
+     * 
+     * @return true if only the header of the block is available.
+     */
+    public boolean isPruned() {
+        return transactions == null && (pruned || store == null || store.isPruned(storeHeight));
+    }
+
+    /**
+     * Method to set the transactions of a block received without them (see BlockChain.readHeaders).
+     * 
+     * @param body transactions of the block.
+     * @return true if the transactions match the block's merkle root (otherwise they are not set).
+     */
+    public boolean setTransactions(List<String> body) {
+        if (body == null || !new MerkleTree(body, getDigest()).getRoot().equals(merkleRoot)) {
+            return false;
+        }
+        this.transactions = body;
+        this.store = null;
+        return true;
+    }
+
+    /**
+     * Method to keep only the header of the block in memory. The transactions are read from the log when needed.
+     * 
+     * @param store log where the block is stored.
+     * @param height height of the block in the log.
+     */
+    void detach(BlockLog store, int height) {
+        this.store = store;
+        this.storeHeight = height;
+        this.transactions = null;
+    }
+
+    /**
+     * Method to drop the transactions of the block (only the header and the merkle root are kept).
+     */
+    void prune() {
+        this.pruned = true;
+        this.transactions = null;
+        this.store = null;
+    }
+
+    /**
+     * Method to bring the transactions back to memory (used before the block is removed from the log).
+     */
+    void attach() {
+        if (transactions == null && !isPruned()) {
+            transactions = transactions();
+            store = null;
+        }
     }
 
     /**
@@ -132,6 +313,33 @@ public class Block implements Serializable, Comparable<Block> {
     public int getNonce() {
         return nonce;
     }
+
+    /**
+     * Getter for the block's creation time.
+     * 
+     * @return milliseconds since the epoch, zero for legacy blocks.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Getter for the block's difficulty.
+     * 
+     * @return number of leading zero bits of the hash.
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * Getter for the block's extra nonce.
+     * 
+     * @return block's extra nonce.
+     */
+    public long getExtraNonce() {
+        return extraNonce;
+    }
     
     /**
      * Method to calculate the block's hash.
@@ -139,7 +347,7 @@ public class Block implements Serializable, Comparable<Block> {
      * @return block's hash.
      */
     public String calculateHash() {
-        return Miner.getHash(getMinerData(), nonce);
+        return Miner.getHash(getMinerData(), (extraNonce << 31) | nonce);
     }
 
     /**
@@ -177,27 +385,182 @@ public class Block implements Serializable, Comparable<Block> {
         header.put("prevHash", previousHash);
         header.put("mktRoot", merkleRoot);
         header.put("nonce", String.valueOf(nonce));
+        header.put("extraNonce", String.valueOf(extraNonce));
+        header.put("timestamp", String.valueOf(timestamp));
+        header.put("difficulty", String.valueOf(difficulty));
         header.put("currentHash", currentHash);
         //return it
         return header;
     }
     
     /**
-     * Method to get the block's transactions list.
+     * Method to get the block's transactions list (empty if they were pruned).
      * 
      * @return blocks transactions.
      */
-    public List getBlockTransactions() {
-        return transactions;
+    public List<String> getBlockTransactions() {
+        return isPruned() ? List.of() : transactions();
     }
 
     /**
-     * Method to check the block's validity, by comparing the blocks current hash with the supposed hash based on it's attributes.
+     * Method to check the block's validity, by comparing the blocks current hash with the supposed hash based on it's attributes
+     * and checking that the hash meets the block's target and that the merkle root is a root of the block's digest.
      * 
      * @return true if the block is valid, false otherwise.
      */
     public boolean isValid() {
-        return currentHash.equals(calculateHash());
+        //blocks with a timestamp must have a SHA-256 merkle root
+        return currentHash != null && currentHash.equals(calculateHash()) && meetsTarget() && getDigest().isRoot(merkleRoot);
+    }
+
+    /**
+     * Method to convert the block (with its transactions) to a binary record.
+     * 
+     * @return bytes of the block.
+     */
+    public byte[] toBytes() {
+        boolean header = isPruned();
+        List<String> body = header ? List.of() : transactions();
+        BinaryWriter out = new BinaryWriter(256 + body.size() * 128);
+        //version 1
+        writeHeader(out);
+        out.writeTexts(body);
+        //version 2
+        out.writeVarInt(header ? 1 : 0);
+        return out.toRecord(RECORD_TYPE, RECORD_VERSION);
+    }
+
+    /**
+     * Method to write the header of the block (every field but the transactions).
+     * 
+     * @param out writer.
+     */
+    void writeHeader(BinaryWriter out) {
+        out.writeText(previousHash);
+        out.writeText(merkleRoot);
+        out.writeVarInt(nonce);
+        out.writeVarLong(extraNonce);
+        out.writeText(currentHash);
+        out.writeVarLong(timestamp);
+        out.writeVarInt(difficulty);
+    }
+
+    /**
+     * Method to read a header written by writeHeader. The block has no transactions until it is detached to a log.
+     * 
+     * @param in reader.
+     * @return block with the header.
+     */
+    static Block readHeader(BinaryReader in) {
+        Block block = new Block();
+        block.previousHash = in.readText();
+        block.merkleRoot = in.readText();
+        block.nonce = in.readVarInt();
+        block.extraNonce = in.readVarLong();
+        block.currentHash = in.readText();
+        block.timestamp = in.readVarLong();
+        block.difficulty = in.readVarInt();
+        return block;
+    }
+
+    /**
+     * Method to read a block from its bytes, as written by toBytes() or by Java serialization (older files).
+     * 
+     * @param bytes bytes of the block.
+     * @return the block.
+     * @throws IOException if the bytes are not a block.
+     */
+    public static Block fromBytes(byte[] bytes) throws IOException {
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Method to read a block from a buffer, as written by toBytes() or by Java serialization (older files).
+     * 
+     * @param bytes bytes of the block (from the current position).
+     * @return the block.
+     * @throws IOException if the bytes are not a block.
+     */
+    static Block read(ByteBuffer bytes) throws IOException {
+        if (bytes.remaining() > 1 && bytes.get(bytes.position()) == (byte) 0xAC) {
+            byte[] serialized = new byte[bytes.remaining()];
+            bytes.get(serialized);
+            return readSerialized(serialized);
+        }
+        BinaryReader in = new BinaryReader(bytes, RECORD_TYPE);
+        try {
+            Block block = readHeader(in);
+            block.transactions = in.readTexts();
+            if (in.hasMore() && in.readVarInt() == 1) {
+                block.prune();
+            }
+            //fields of newer versions are read here, after checking in.hasMore()
+            return block;
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted block", ex);
+        }
+    }
+
+    /**
+     * Method to read a block written with Java serialization.
+     * 
+     * @param bytes serialized block.
+     * @return the block.
+     * @throws IOException if the bytes are not a block.
+     */
+    private static Block readSerialized(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Block) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Not a block", ex);
+        }
+    }
+
+    /**
+     * Constructor for a block read from a binary record.
+     */
+    private Block() {
+    }
+
+    /**
+     * Method to serialize the block in the binary format (also loads the transactions of a block that only has its header
+     * in memory). Streams written before still hold the default serialized form, which is read as usual.
+     * 
+     * @return binary form of the block.
+     */
+    private Object writeReplace() {
+        return new Binary(toBytes());
+    }
+
+    /**
+     * Serialized form of a block: the binary record.
+     */
+    private static final class Binary implements Serializable {
+
+        /**
+         * Bytes of the block.
+         */
+        private final byte[] bytes;
+
+        Binary(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Method to read the block back.
+         * 
+         * @return the block.
+         * @throws ObjectStreamException 
+         */
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return fromBytes(bytes);
+            } catch (IOException ex) {
+                throw new InvalidObjectException(ex.getMessage());
+            }
+        }
+
+        private static final long serialVersionUID = 202412221200L;
     }
 
     //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
@@ -220,6 +583,15 @@ public class Block implements Serializable, Comparable<Block> {
         if (this.nonce != other.nonce) {
             return false;
         }
+        if (this.extraNonce != other.extraNonce) {
+            return false;
+        }
+        if (this.timestamp != other.timestamp) {
+            return false;
+        }
+        if (this.difficulty != other.difficulty) {
+            return false;
+        }
         if (!Objects.equals(this.previousHash, other.previousHash)) {
             return false;
         }
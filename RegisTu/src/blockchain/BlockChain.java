@@ -10,13 +10,24 @@
  */
 package blockchain;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import utils.BinaryReader;
+import utils.BinaryWriter;
 
 /**
  * This class represents the chain itself in the Blockchain environment. This class is already adjusted for concurrent access.
@@ -27,15 +38,139 @@ import java.util.concurrent.CopyOnWriteArrayList;
 public class BlockChain implements Serializable {
 
     /**
-     * Thread-safe ArrayList that represents the chain.
+     * Append-only list of blocks that represents the chain (reads need no lock and snapshots are O(1)).
      */
-    CopyOnWriteArrayList<Block> chain;
+    BlockList chain;
+
+    /**
+     * Difficulty (leading zero bits) of the first block with a timestamp.
+     */
+    public static final int INITIAL_DIFFICULTY = 20;
+    /**
+     * Minimum difficulty allowed by the retargeting.
+     */
+    public static final int MIN_DIFFICULTY = 1;
+    /**
+     * Maximum difficulty allowed by the retargeting.
+     */
+    public static final int MAX_DIFFICULTY = 128;
+    /**
+     * Number of blocks between difficulty adjustments.
+     */
+    public static final int RETARGET_INTERVAL = 10;
+    /**
+     * Desired time between blocks, in milliseconds.
+     */
+    public static final long TARGET_BLOCK_TIME = 30_000;
+    /**
+     * Maximum change, in bits, of a single adjustment (2 bits = 4 times easier or harder).
+     */
+    public static final int MAX_ADJUSTMENT = 2;
+    /**
+     * How far in the future (milliseconds) a new block's timestamp may be.
+     */
+    public static final long MAX_FUTURE_DRIFT = 10 * 60_000;
+    /**
+     * Number of previous blocks whose median timestamp a new block's timestamp must exceed.
+     */
+    public static final int MEDIAN_TIME_SPAN = 11;
+    /**
+     * Maximum depth, below the tip, of the blocks kept in side branches (forks deeper than this are rejected).
+     */
+    public static final int MAX_FORK_DEPTH = 100;
+    /**
+     * Maximum number of blocks kept in side branches (new side blocks are rejected while it is reached).
+     */
+    public static final int MAX_SIDE_BLOCKS = 1000;
+
+    /**
+     * Difficulty of the first block with a timestamp in this chain (zero means INITIAL_DIFFICULTY).
+     */
+    int initialDifficulty;
+
+    /**
+     * Number of blocks, from the start, already verified by isValid.
+     */
+    transient int verifiedHeight;
+    /**
+     * Hash of the last verified block.
+     */
+    transient String verifiedHash;
+
+    /**
+     * Minimum number of blocks to check the hashes in parallel.
+     */
+    static final int PARALLEL_THRESHOLD = 256;
+
+    /**
+     * Index of the blocks by hash (hash -> height).
+     */
+    transient Map<String, Integer> hashIndex;
+    /**
+     * Index of the blocks by merkle root (root -> height).
+     */
+    transient Map<String, Integer> rootIndex;
+
+    /**
+     * Log where the blocks are stored (null if the chain is only in memory).
+     */
+    transient BlockLog log;
+
+    /**
+     * Blocks of the side branches.
+     */
+    transient BlockTree tree;
+    /**
+     * Sum of the work of the blocks in the chain.
+     */
+    transient volatile BigInteger work;
+
+    /**
+     * Maximum number of headers sent by getHeaders.
+     */
+    public static final int HEADER_BATCH = 2000;
+    /**
+     * Maximum number of headers downloaded from a peer in one synchronization.
+     */
+    public static final int MAX_SYNC_HEADERS = 50 * HEADER_BATCH;
+    /**
+     * Maximum number of blocks whose transactions are sent by getBodies.
+     */
+    public static final int BODY_BATCH = 64;
+    /**
+     * Type of the header records (see getHeaders).
+     */
+    static final byte HEADERS_TYPE = 'H';
+    /**
+     * Version of the header records.
+     */
+    static final int HEADERS_VERSION = 1;
+
+    /**
+     * Type of the snapshot records (see toSnapshot).
+     */
+    static final byte SNAPSHOT_TYPE = 'S';
+    /**
+     * Version of the snapshot records.
+     */
+    static final int SNAPSHOT_VERSION = 1;
 
     /**
      * Constructor for a blank chain.
      */
     public BlockChain() {
-        chain = new CopyOnWriteArrayList<>();
+        chain = new BlockList();
+        reindex();
+    }
+    
+    /**
+     * Constructor for a blank chain with a custom initial difficulty (used to build chains in benchmarks).
+     * 
+     * @param initialDifficulty difficulty of the first block.
+     */
+    BlockChain(int initialDifficulty) {
+        this();
+        this.initialDifficulty = initialDifficulty;
     }
     
     /**
@@ -49,7 +184,110 @@ public class BlockChain implements Serializable {
             load(fileName);
         } catch (Exception e) {
             //if the loading fails, create blank chain.
-            chain = new CopyOnWriteArrayList<>();
+            chain = new BlockList();
+            reindex();
+        }
+    }
+
+    /**
+     * Constructor that loads the chain stored in a block log. If the log is empty and the given legacy file exists (chain
+     * saved by older versions), the chain is loaded from the file and copied to the log.
+     * The log is attached to the chain, so the blocks added later are appended to it.
+     * 
+     * @param log block log.
+     * @param legacyFile file name/path of a chain saved with save().
+     * @throws IOException 
+     */
+    public BlockChain(BlockLog log, String legacyFile) throws IOException {
+        this();
+        if (log.size() == 0 && new File(legacyFile).exists()) {
+            try {
+                load(legacyFile);
+            } catch (Exception ex) {
+                throw new IOException("Cannot migrate " + legacyFile, ex);
+            }
+            log.appendAll(chain.snapshot());
+        } else {
+            chain = new BlockList(log.readAll());
+            reindex();
+        }
+        this.log = log;
+    }
+
+    /**
+     * Method to get a snapshot of the chain: the headers of the blocks, the verified checkpoint and a checkpoint of the log.
+     * A node started from the snapshot (fromSnapshot) only reads the blocks added to the log after it.
+     * 
+     * @return bytes of the snapshot.
+     * @throws IOException 
+     */
+    public synchronized byte[] toSnapshot() throws IOException {
+        if (log == null) {
+            throw new IOException("Chain without a log");
+        }
+        List<Block> blocks = chain.snapshot();
+        BinaryWriter out = new BinaryWriter(64 + blocks.size() * 192);
+        //version 1
+        out.writeVarInt(initialDifficulty);
+        out.writeVarInt(verifiedHeight);
+        out.writeVarInt(blocks.size());
+        for (Block block : blocks) {
+            block.writeHeader(out);
+        }
+        log.writeCheckpoint(out);
+        return out.toRecord(SNAPSHOT_TYPE, SNAPSHOT_VERSION);
+    }
+
+    /**
+     * Method to open the chain stored in a block log from a snapshot written by toSnapshot. The blocks of the snapshot are
+     * taken from it and the blocks appended to the log since then are read from the log (and are not verified yet).
+     * 
+     * @param snapshot bytes of the snapshot.
+     * @param logDirectory directory of the block log.
+     * @return chain with the log attached.
+     * @throws IOException if the snapshot does not match the log (open the chain from the log instead).
+     */
+    public static BlockChain fromSnapshot(byte[] snapshot, String logDirectory) throws IOException {
+        BinaryReader in = new BinaryReader(snapshot, SNAPSHOT_TYPE);
+        BlockChain chain = new BlockChain();
+        List<Block> headers;
+        int verified;
+        BlockLog log;
+        try {
+            chain.initialDifficulty = in.readVarInt();
+            verified = in.readVarInt();
+            int count = in.readVarInt();
+            headers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                headers.add(Block.readHeader(in));
+            }
+            log = new BlockLog(logDirectory, in);
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted snapshot", ex);
+        }
+        try {
+            int count = headers.size();
+            if (log.size() < count || verified > count) {
+                throw new IOException("Snapshot ahead of the log");
+            }
+            //the last block of the snapshot must still be in the log at the same height
+            List<Block> tail = log.readFrom(Math.max(0, count - 1));
+            if (count > 0 && !tail.get(0).currentHash.equals(headers.get(count - 1).currentHash)) {
+                throw new IOException("Snapshot does not match the log");
+            }
+            for (int i = 0; i < count; i++) {
+                headers.get(i).detach(log, i);
+            }
+            BlockList blocks = new BlockList(headers);
+            blocks.addAll(tail.subList(count > 0 ? 1 : 0, tail.size()));
+            chain.chain = blocks;
+            chain.reindex();
+            chain.setVerified(blocks.snapshot(), verified);
+            chain.log = log;
+            return chain;
+        } catch (IOException | RuntimeException ex) {
+            log.close();
+            throw ex instanceof IOException ? (IOException) ex : new IOException("Corrupted snapshot", ex);
         }
     }
 
@@ -59,12 +297,13 @@ public class BlockChain implements Serializable {
      * @return last block's hash.
      */
     public String getLastBlockHash() {
+        List<Block> blocks = chain.snapshot();
         //return genessis block hash
-        if (chain.isEmpty()) {
+        if (blocks.isEmpty()) {
             return String.format("%08d", 0);
         }
         //hash of the last block in the list
-        return chain.get(chain.size() - 1).currentHash;
+        return blocks.get(blocks.size() - 1).currentHash;
     }
      /**
      * Getter for the last block in the chain.
@@ -72,26 +311,211 @@ public class BlockChain implements Serializable {
      * @return last block in the chain.
      */
     public Block getLastBlock() {
+        List<Block> blocks = chain.snapshot();
         //return null (Genessis block) if the chain is empty
-        if (chain.isEmpty()) {
+        if (blocks.isEmpty()) {
             return null;
         }
         //return the last block in the chain
-        return chain.get(chain.size() - 1);
+        return blocks.get(blocks.size() - 1);
     }
 
     /**
-     * Method for adding a new block to the Blockchain.
+     * Method for adding a new block to the Blockchain. If the chain has a log, the block is appended to it and is durable
+     * when this method returns.
      * 
      * @param newBlock block to be added.
      * @throws Exception 
      */
     public void add(Block newBlock) throws Exception {
+        BlockLog target;
+        long position;
+        synchronized (this) {
+            append(newBlock);
+            target = log;
+            position = target == null ? 0 : target.append(newBlock);
+        }
+        //forced outside the lock, so concurrent adds share the fsync
+        if (target != null) {
+            target.sync(position);
+        }
+    }
+
+    /**
+     * Method for adding a block that may not extend the tip. A block whose previous block is in the chain or in a side
+     * branch is kept in a side branch; if that branch has more work than the blocks of the chain after the fork point,
+     * the chain is reorganized: only the blocks after the fork point are removed (and kept as a side branch) and the
+     * blocks of the branch are checked and appended. Side branches more than MAX_FORK_DEPTH blocks below the tip are dropped.
+     * 
+     * @param newBlock block to be added.
+     * @return change of the chain, or null if the previous block is unknown.
+     * @throws Exception if the block is invalid, already known, forks too deep or the side branches are full.
+     */
+    public Reorg accept(Block newBlock) throws Exception {
+        BlockLog target;
+        long position = 0;
+        Reorg reorg;
+        synchronized (this) {
+            if (getLastBlockHash().equals(newBlock.previousHash)) {
+                append(newBlock);
+                tree.remove(newBlock.currentHash);
+                reorg = new Reorg(List.of(), List.of(newBlock));
+            } else {
+                reorg = addToBranch(newBlock);
+            }
+            target = log;
+            if (target != null && reorg != null) {
+                for (Block block : reorg.getAdded()) {
+                    position = target.append(block);
+                }
+            }
+            tree.prune(chain.size() - MAX_FORK_DEPTH);
+        }
+        //forced outside the lock, so concurrent adds share the fsync
+        if (position > 0) {
+            target.sync(position);
+        }
+        return reorg;
+    }
+
+    /**
+     * Method for adding a block to a side branch and moving the chain to the branch if it has more work.
+     * 
+     * @param newBlock block to be added.
+     * @return change of the chain, or null if the previous block is unknown.
+     * @throws Exception 
+     */
+    private Reorg addToBranch(Block newBlock) throws Exception {
+        if (contains(newBlock.currentHash)) {
+            throw new Exception("Duplicated Block");
+        }
+        if (newBlock.isLegacy()) {
+            throw new Exception("Block without timestamp");
+        }
+        if (newBlock.timestamp > System.currentTimeMillis() + MAX_FUTURE_DRIFT) {
+            throw new Exception("Block timestamp too far in the future");
+        }
+        if (!newBlock.isValid()) {
+            throw new Exception("Invalid Block");
+        }
+        List<Block> blocks = chain.snapshot();
+        //height of the block from its previous block (in the chain or in a side branch)
+        int parent = heightOf(newBlock.previousHash);
+        List<Block> ancestors;
+        if (parent >= 0) {
+            ancestors = blocks.subList(0, parent + 1);
+        } else {
+            Block previous = tree.get(newBlock.previousHash);
+            if (previous == null) {
+                return null;
+            }
+            parent = tree.heightOf(newBlock.previousHash);
+            List<Block> previousBranch = tree.branch(previous);
+            ancestors = join(blocks, parent + 1 - previousBranch.size(), previousBranch);
+        }
+        if (parent + 1 < blocks.size() - MAX_FORK_DEPTH) {
+            throw new Exception("Fork too deep");
+        }
+        if (newBlock.timestamp <= getMedianTime(ancestors, parent + 1)) {
+            throw new Exception("Block timestamp not after the median of the previous blocks");
+        }
+        //the side branches are bounded, each block costs the work its branch expects
+        if (tree.size() >= MAX_SIDE_BLOCKS) {
+            throw new Exception("Too many blocks in side branches");
+        }
+        int expected = getDifficultyAt(ancestors, parent + 1);
+        if (newBlock.difficulty != expected) {
+            throw new Exception("Unexpected difficulty " + newBlock.difficulty + " expected " + expected);
+        }
+        tree.add(newBlock, parent + 1);
+        List<Block> branch = tree.branch(newBlock);
+        int fork = parent + 2 - branch.size();
+        //the chain only moves to a branch with more work (on a tie the first block seen wins)
+        BigInteger branchWork = BigInteger.ZERO;
+        for (Block block : branch) {
+            branchWork = branchWork.add(block.getWork());
+        }
+        BigInteger chainWork = BigInteger.ZERO;
+        for (int i = fork; i < blocks.size(); i++) {
+            chainWork = chainWork.add(blocks.get(i).getWork());
+        }
+        if (branchWork.compareTo(chainWork) <= 0) {
+            return new Reorg(List.of(), List.of());
+        }
+        //check the branch on top of the blocks in common (links and difficulty)
+        if (!isValid(join(blocks, fork, branch), fork)) {
+            for (Block block : branch) {
+                tree.remove(block.currentHash);
+            }
+            throw new Exception("Invalid branch");
+        }
+        //undo the blocks after the fork point (they become a side branch) and redo the branch
+        List<Block> removed = new ArrayList<>(blocks.subList(fork, blocks.size()));
+        boolean verified = verifiedHeight >= fork;
+        truncate(fork);
+        for (Block block : branch) {
+            tree.remove(block.currentHash);
+            chain.add(block);
+            index(block, chain.size() - 1);
+            work = work.add(block.getWork());
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            tree.add(removed.get(i), fork + i);
+        }
+        if (verified) {
+            setVerified(chain.snapshot(), chain.size());
+        }
+        return new Reorg(removed, branch);
+    }
+
+    /**
+     * Method to view the blocks of the chain up to a fork point followed by the blocks of a branch, without copying them.
+     * 
+     * @param blocks blocks of the chain.
+     * @param fork height of the first block of the branch.
+     * @param branch blocks of the branch.
+     * @return blocks of the chain with the branch.
+     */
+    private static List<Block> join(List<Block> blocks, int fork, List<Block> branch) {
+        return new AbstractList<Block>() {
+            @Override
+            public Block get(int index) {
+                return index < fork ? blocks.get(index) : branch.get(index - fork);
+            }
+
+            @Override
+            public int size() {
+                return fork + branch.size();
+            }
+        };
+    }
+
+    /**
+     * Method for checking and appending a new block to the chain (in memory).
+     * 
+     * @param newBlock block to be added.
+     * @throws Exception 
+     */
+    private void append(Block newBlock) throws Exception {
         //
-        if (chain.contains(newBlock)) {
+        if (hashIndex.containsKey(newBlock.currentHash)) {
             throw new Exception("Duplicated Block");
         }
 
+        //new blocks must carry a timestamp and a target
+        if (newBlock.isLegacy()) {
+            throw new Exception("Block without timestamp");
+        }
+        if (newBlock.timestamp > System.currentTimeMillis() + MAX_FUTURE_DRIFT) {
+            throw new Exception("Block timestamp too far in the future");
+        }
+        if (newBlock.timestamp <= getMedianTime(chain.snapshot(), chain.size())) {
+            throw new Exception("Block timestamp not after the median of the previous blocks");
+        }
+        //verify if the block uses the difficulty the chain expects
+        if (newBlock.difficulty != getNextDifficulty()) {
+            throw new Exception("Unexpected difficulty " + newBlock.difficulty + " expected " + getNextDifficulty());
+        }
         //verify if the block is valid
         if (!newBlock.isValid()) {
             throw new Exception("Invalid Block");
@@ -102,6 +526,80 @@ public class BlockChain implements Serializable {
         }
         //add new block to the chain
         chain.add(newBlock);
+        index(newBlock, chain.size() - 1);
+        work = work.add(newBlock.getWork());
+        //the block was fully checked, keep the checkpoint at the tip
+        if (verifiedHeight == chain.size() - 1) {
+            verifiedHeight = chain.size();
+            verifiedHash = newBlock.currentHash;
+        }
+    }
+
+    /**
+     * Getter for the difficulty the next block must have.
+     * 
+     * @return number of leading zero bits.
+     */
+    public int getNextDifficulty() {
+        List<Block> blocks = chain.snapshot();
+        return getDifficultyAt(blocks, blocks.size());
+    }
+
+    /**
+     * Method to calculate the difficulty expected for the block at a given height.
+     * The difficulty is kept for RETARGET_INTERVAL blocks and then adjusted by log2(expected time / observed time) of the
+     * last interval, limited to MAX_ADJUSTMENT bits. The time of the interval is measured between the median timestamps
+     * (see getMedianTime) at its ends, so a few timestamps set in the future or in the past do not move it; the first
+     * interval after the blocks without timestamp keeps the difficulty.
+     * 
+     * @param blocks chain.
+     * @param height height of the block.
+     * @return number of leading zero bits.
+     */
+    int getDifficultyAt(List<Block> blocks, int height) {
+        //first block, or first block after the legacy ones
+        if (height == 0 || blocks.get(height - 1).isLegacy()) {
+            return initialDifficulty > 0 ? initialDifficulty : INITIAL_DIFFICULTY;
+        }
+        Block last = blocks.get(height - 1);
+        //only adjust at the end of an interval
+        if (height % RETARGET_INTERVAL != 0 || blocks.get(height - RETARGET_INTERVAL).isLegacy()) {
+            return last.difficulty;
+        }
+        long start = getMedianTime(blocks, height - RETARGET_INTERVAL);
+        if (start == Long.MIN_VALUE) {
+            return last.difficulty;
+        }
+        //time taken by the interval and the expected time
+        long observed = Math.max(1, getMedianTime(blocks, height) - start);
+        long expected = RETARGET_INTERVAL * TARGET_BLOCK_TIME;
+        //each bit doubles or halves the work
+        int adjustment = (int) Math.round(Math.log((double) expected / observed) / Math.log(2));
+        adjustment = Math.max(-MAX_ADJUSTMENT, Math.min(MAX_ADJUSTMENT, adjustment));
+        return Math.max(MIN_DIFFICULTY, Math.min(MAX_DIFFICULTY, last.difficulty + adjustment));
+    }
+
+    /**
+     * Method to calculate the median of the timestamps of the MEDIAN_TIME_SPAN blocks before a height (the blocks without
+     * timestamp are not counted). Each block must have a timestamp after this median, so the median never goes back.
+     * 
+     * @param blocks chain.
+     * @param height height of the block.
+     * @return median timestamp, or Long.MIN_VALUE if no previous block has a timestamp.
+     */
+    static long getMedianTime(List<Block> blocks, int height) {
+        long[] times = new long[MEDIAN_TIME_SPAN];
+        int count = 0;
+        for (int i = Math.max(0, height - MEDIAN_TIME_SPAN); i < height; i++) {
+            if (!blocks.get(i).isLegacy()) {
+                times[count++] = blocks.get(i).timestamp;
+            }
+        }
+        if (count == 0) {
+            return Long.MIN_VALUE;
+        }
+        Arrays.sort(times, 0, count);
+        return times[count / 2];
     }
 
     /**
@@ -114,6 +612,341 @@ public class BlockChain implements Serializable {
         return chain.get(index);
     }
     
+    /**
+     * Getter for a block by its hash.
+     * 
+     * @param hash hash of the block.
+     * @return the block, or null if it is not in the chain.
+     */
+    public Block getByHash(String hash) {
+        List<Block> blocks = chain.snapshot();
+        Integer height = hashIndex.get(hash);
+        //the chain may have changed after the lookup
+        if (height == null || height >= blocks.size() || !blocks.get(height).currentHash.equals(hash)) {
+            return null;
+        }
+        return blocks.get(height);
+    }
+
+    /**
+     * Getter for a block by its merkle root.
+     * 
+     * @param merkleRoot root of the block's merkle tree.
+     * @return the block, or null if it is not in the chain.
+     */
+    public Block getByMerkleRoot(String merkleRoot) {
+        List<Block> blocks = chain.snapshot();
+        Integer height = rootIndex.get(merkleRoot);
+        //the chain may have changed after the lookup
+        if (height == null || height >= blocks.size() || !blocks.get(height).merkleRoot.equals(merkleRoot)) {
+            return null;
+        }
+        return blocks.get(height);
+    }
+
+    /**
+     * Getter for the height (index) of a block in the chain.
+     * 
+     * @param hash hash of the block.
+     * @return height of the block, or -1 if it is not in the chain.
+     */
+    public int heightOf(String hash) {
+        List<Block> blocks = chain.snapshot();
+        Integer height = hashIndex.get(hash);
+        if (height == null || height >= blocks.size() || !blocks.get(height).currentHash.equals(hash)) {
+            return -1;
+        }
+        return height;
+    }
+
+    /**
+     * Getter for the height of the last block of the chain in common with a known block: the block itself if it is in
+     * the chain, or the fork point of its side branch (the blocks removed by a reorganization are kept as a side branch).
+     * 
+     * @param hash hash of the block.
+     * @return height of the block in common, or -1 if the block is not known.
+     */
+    public synchronized int getForkHeight(String hash) {
+        int height = heightOf(hash);
+        for (Block block = tree.get(hash); height < 0 && block != null; block = tree.get(block.previousHash)) {
+            height = heightOf(block.previousHash);
+        }
+        return height;
+    }
+
+    /**
+     * Getter for a block locator: hashes of this chain from the tip back to the first block, one by one for the last
+     * blocks and then doubling the step, so a peer finds the last block in common with few hashes sent.
+     * 
+     * @return hashes, from the tip.
+     */
+    public List<String> getLocator() {
+        List<Block> blocks = chain.snapshot();
+        List<String> locator = new ArrayList<>();
+        int step = 1;
+        for (int height = blocks.size() - 1; height > 0; height -= step) {
+            locator.add(blocks.get(height).currentHash);
+            if (locator.size() >= 10) {
+                step *= 2;
+            }
+        }
+        if (!blocks.isEmpty()) {
+            locator.add(blocks.get(0).currentHash);
+        }
+        return locator;
+    }
+
+    /**
+     * Method to find the fork point of another chain given by its locator.
+     * 
+     * @param locator locator of the other chain (see getLocator).
+     * @return number of blocks the chains have in common (0 if none).
+     */
+    public int findForkPoint(List<String> locator) {
+        for (String hash : locator) {
+            int height = heightOf(hash);
+            if (height >= 0) {
+                return height + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Getter for the headers of the blocks from a given height (the blocks without their transactions).
+     * 
+     * @param from height of the first block.
+     * @param max maximum number of headers (limited to HEADER_BATCH).
+     * @return record with the headers (see readHeaders).
+     */
+    public byte[] getHeaders(int from, int max) {
+        List<Block> blocks = chain.snapshot();
+        int start = Math.max(0, Math.min(from, blocks.size()));
+        int end = Math.min(blocks.size(), start + Math.max(0, Math.min(max, HEADER_BATCH)));
+        BinaryWriter out = new BinaryWriter(16 + (end - start) * 192);
+        //version 1
+        out.writeVarInt(end - start);
+        for (int i = start; i < end; i++) {
+            blocks.get(i).writeHeader(out);
+        }
+        return out.toRecord(HEADERS_TYPE, HEADERS_VERSION);
+    }
+
+    /**
+     * Method to read the headers written by getHeaders. The blocks have no transactions until Block.setTransactions.
+     * 
+     * @param headers record with the headers.
+     * @return blocks with only the header.
+     * @throws IOException if the record is corrupted.
+     */
+    public static List<Block> readHeaders(byte[] headers) throws IOException {
+        BinaryReader in = new BinaryReader(headers, HEADERS_TYPE);
+        try {
+            int count = in.readVarInt();
+            List<Block> blocks = new ArrayList<>(Math.min(count, HEADER_BATCH));
+            for (int i = 0; i < count; i++) {
+                blocks.add(Block.readHeader(in));
+            }
+            return blocks;
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted headers", ex);
+        }
+    }
+
+    /**
+     * Getter for the transactions of some blocks.
+     * 
+     * @param hashes hashes of the blocks (only the first BODY_BATCH are answered).
+     * @return transactions of each block, null for the blocks that are not in the chain or were pruned.
+     */
+    public List<List<String>> getBodies(List<String> hashes) {
+        List<List<String>> bodies = new ArrayList<>();
+        for (String hash : hashes.subList(0, Math.min(hashes.size(), BODY_BATCH))) {
+            Block block = getByHash(hash);
+            bodies.add(block == null || block.isPruned() ? null : new ArrayList<>(block.transactions()));
+        }
+        return bodies;
+    }
+
+    /**
+     * Method to drop the transactions of old blocks from the log (pruned node). The blocks of the last keep blocks (at
+     * least MAX_FORK_DEPTH, so a reorg always has the transactions it moves) and the blocks to retain keep their
+     * transactions; the others keep only the header and the merkle root.
+     * 
+     * @param keep number of recent blocks to keep whole.
+     * @param retain older blocks to keep whole.
+     * @return blocks pruned.
+     * @throws IOException 
+     */
+    public List<Block> prune(int keep, Predicate<Block> retain) throws IOException {
+        BlockLog target = log;
+        if (target == null) {
+            return List.of();
+        }
+        return target.prune(getSize() - Math.max(keep, MAX_FORK_DEPTH), retain);
+    }
+
+    /**
+     * Getter for the height below which the transactions of the blocks may have been pruned.
+     * 
+     * @return height (zero if the chain has every transaction).
+     */
+    public int getPrunedHeight() {
+        BlockLog target = log;
+        return target == null ? 0 : target.getPrunedHeight();
+    }
+
+    /**
+     * Method to create a chain with the blocks of this one up to a fork point followed by other blocks. The blocks in
+     * common are shared and stay verified; the others are checked by isValid.
+     * 
+     * @param height number of blocks kept from this chain.
+     * @param blocks blocks after the fork point.
+     * @return new chain (without a log, see takeLog).
+     */
+    public BlockChain fork(int height, List<Block> blocks) {
+        List<Block> mine = chain.snapshot();
+        if (height < 0 || height > mine.size()) {
+            throw new IndexOutOfBoundsException(height);
+        }
+        BlockChain fork = new BlockChain(initialDifficulty);
+        fork.chain.addAll(mine.subList(0, height));
+        fork.chain.addAll(blocks);
+        fork.reindex();
+        //the checkpoint is only kept inside the blocks in common
+        fork.setVerified(fork.chain.snapshot(), Math.min(verifiedHeight, height));
+        return fork;
+    }
+
+    /**
+     * Method to check the blocks received after a fork point as they arrive, before the whole branch is known: the proof
+     * of work, the links and the difficulty of the blocks from a given index, on top of this chain up to the fork point
+     * and the blocks before them.
+     * 
+     * @param height number of blocks kept from this chain.
+     * @param blocks blocks after the fork point.
+     * @param from index, in the blocks after the fork point, of the first block to check.
+     * @return true if the blocks are valid, false otherwise (or if the fork point is not in this chain).
+     */
+    public boolean isValidBranch(int height, List<Block> blocks, int from) {
+        List<Block> mine = chain.snapshot();
+        if (height < 0 || height > mine.size() || from < 0 || from > blocks.size()) {
+            return false;
+        }
+        return isValid(join(mine, height, blocks), height + from);
+    }
+
+    /**
+     * Method to check if a block is known: in the chain or in a side branch.
+     * 
+     * @param hash hash of the block.
+     * @return true if the block is known.
+     */
+    public synchronized boolean contains(String hash) {
+        return heightOf(hash) >= 0 || tree.contains(hash);
+    }
+
+    /**
+     * Getter for the work of the chain (sum of the work of its blocks).
+     * 
+     * @return work of the chain.
+     */
+    public BigInteger getWork() {
+        return work;
+    }
+
+    /**
+     * Method for removing the blocks from a given height to the tip.
+     * 
+     * @param height new size of the chain.
+     */
+    synchronized void truncate(int height) throws IOException {
+        List<Block> blocks = chain.snapshot();
+        if (log != null) {
+            //the removed blocks keep their transactions in memory
+            for (int i = height; i < blocks.size(); i++) {
+                blocks.get(i).attach();
+            }
+            log.truncate(height);
+        }
+        for (int i = blocks.size() - 1; i >= height; i--) {
+            Block block = blocks.get(i);
+            hashIndex.remove(block.currentHash, i);
+            rootIndex.remove(block.merkleRoot, i);
+            work = work.subtract(block.getWork());
+        }
+        chain.truncate(height);
+        //keep the checkpoint inside the chain
+        if (verifiedHeight > height) {
+            setVerified(blocks, height);
+        }
+    }
+
+    /**
+     * Method to get the height of the last block this chain has in common with another one (hashes link the blocks, so
+     * the chains are equal up to that height and different after it).
+     * 
+     * @param other other chain.
+     * @return number of blocks in common.
+     */
+    public int getCommonHeight(BlockChain other) {
+        List<Block> mine = chain.snapshot();
+        List<Block> theirs = other.chain.snapshot();
+        //binary search for the first height where the blocks differ
+        int low = 0;
+        int high = Math.min(mine.size(), theirs.size());
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mine.get(middle).currentHash.equals(theirs.get(middle).currentHash)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Method to move the log of another chain to this one (used when this chain replaces it). The log already holds the
+     * blocks the chains have in common; the rest is replaced by this chain's blocks.
+     * 
+     * @param previous chain that owned the log.
+     * @return change from the previous chain to this one.
+     * @throws IOException 
+     */
+    public Reorg takeLog(BlockChain previous) throws IOException {
+        BlockLog taken;
+        int common;
+        List<Block> replaced;
+        synchronized (previous) {
+            taken = previous.log;
+            previous.log = null;
+            common = getCommonHeight(previous);
+            replaced = previous.chain.snapshot();
+        }
+        List<Block> blocks;
+        synchronized (this) {
+            blocks = chain.snapshot();
+            if (taken != null) {
+                int stored = Math.min(common, taken.size());
+                //the replaced blocks keep their transactions in memory
+                for (int i = stored; i < replaced.size(); i++) {
+                    replaced.get(i).attach();
+                }
+                taken.truncate(stored);
+                //the common blocks are already stored, only their headers stay in memory
+                for (int i = 0; i < stored; i++) {
+                    if (blocks.get(i).store == null) {
+                        blocks.get(i).detach(taken, i);
+                    }
+                }
+                taken.appendAll(blocks.subList(stored, blocks.size()));
+                log = taken;
+            }
+        }
+        return new Reorg(replaced.subList(common, replaced.size()), blocks.subList(common, blocks.size()));
+    }
+
     /**
      * Getter for the chain's size.
      * 
@@ -130,20 +963,21 @@ public class BlockChain implements Serializable {
      */
     public String toString() {
         StringBuilder txt = new StringBuilder();
-        txt.append("Blochain size = " + chain.size() + "\n");
-        for (Block block : chain) {
+        List<Block> blocks = chain.snapshot();
+        txt.append("Blochain size = " + blocks.size() + "\n");
+        for (Block block : blocks) {
             txt.append(block.toString() + "\n");
         }
         return txt.toString();
     }
     
     /**
-     * Getter for the Blockchain itself.
+     * Getter for the Blockchain itself, as an immutable snapshot (blocks added later are not visible in it).
      * 
      * @return the chain. 
      */
     public List<Block> getChain() {
-        return chain;
+        return chain.snapshot();
     }
     
     /**
@@ -169,27 +1003,164 @@ public class BlockChain implements Serializable {
     public void load(String fileName) throws Exception {
         //load the chain from the file
         try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(fileName))) {
-            this.chain = (CopyOnWriteArrayList<Block>) in.readObject();
+            //older files hold a CopyOnWriteArrayList
+            this.chain = new BlockList((List<Block>) in.readObject());
         }
+        reindex();
     }
 
     /**
-     * Method for checking if a Blockchain is valid.
+     * Method for checking if a Blockchain is valid. Only the blocks after the last verified height are checked; the first call
+     * on a loaded or received chain checks everything.
      * 
      * @return true if all the blocks and connections are valid, false otherwise.
      */
-    public boolean isValid() {
-        //check each block's validity
-        for (Block block : chain) {
-            if (!block.isValid()) {
-                //return false if any block is not valid.
-                return false;
+    public synchronized boolean isValid() {
+        List<Block> blocks = chain.snapshot();
+        //start after the checkpoint if it still matches the chain
+        int from = 0;
+        if (verifiedHeight > 0 && verifiedHeight <= blocks.size()
+                && blocks.get(verifiedHeight - 1).currentHash.equals(verifiedHash)) {
+            from = verifiedHeight;
+        }
+        if (!isValid(blocks, from)) {
+            return false;
+        }
+        setVerified(blocks, blocks.size());
+        return true;
+    }
+
+    /**
+     * Method for checking the whole Blockchain again, ignoring the verified height. The block hashes are checked in parallel.
+     * 
+     * @return true if all the blocks and connections are valid, false otherwise.
+     */
+    public synchronized boolean revalidate() {
+        List<Block> blocks = chain.snapshot();
+        setVerified(blocks, 0);
+        if (!isValid(blocks, 0)) {
+            return false;
+        }
+        setVerified(blocks, blocks.size());
+        return true;
+    }
+
+    /**
+     * Method for reusing the verified blocks of a trusted chain. If this chain contains the trusted chain's verified tip at the
+     * same height, the blocks up to it are replaced by the trusted ones and marked as verified, so only the rest is checked.
+     * 
+     * @param trusted chain already verified (usually the local chain).
+     */
+    public synchronized void adoptVerifiedPrefix(BlockChain trusted) {
+        int height;
+        String hash;
+        List<Block> prefix;
+        List<Block> blocks = chain.snapshot();
+        synchronized (trusted) {
+            height = trusted.verifiedHeight;
+            hash = trusted.verifiedHash;
+            if (height == 0 || height > blocks.size() || !blocks.get(height - 1).currentHash.equals(hash)) {
+                return;
             }
+            prefix = trusted.chain.snapshot().subList(0, height);
+        }
+        //trusted prefix followed by this chain's own blocks
+        chain = new BlockList(prefix);
+        chain.addAll(blocks.subList(height, blocks.size()));
+        reindex();
+        verifiedHeight = height;
+        verifiedHash = hash;
+    }
+
+    /**
+     * Getter for the number of blocks already verified.
+     * 
+     * @return verified height.
+     */
+    public int getVerifiedHeight() {
+        return verifiedHeight;
+    }
+
+    /**
+     * Method to add a block to the indexes.
+     * 
+     * @param block block.
+     * @param height height of the block.
+     */
+    private void index(Block block, int height) {
+        hashIndex.put(block.currentHash, height);
+        //the first block with a given root wins
+        rootIndex.putIfAbsent(block.merkleRoot, height);
+    }
+
+    /**
+     * Method to rebuild the indexes and the work from the blocks of the chain (the side branches are dropped).
+     */
+    synchronized void reindex() {
+        hashIndex = new ConcurrentHashMap<>();
+        rootIndex = new ConcurrentHashMap<>();
+        tree = new BlockTree();
+        BigInteger sum = BigInteger.ZERO;
+        List<Block> blocks = chain.snapshot();
+        for (int i = 0; i < blocks.size(); i++) {
+            index(blocks.get(i), i);
+            sum = sum.add(blocks.get(i).getWork());
         }
-        //validate each link
-        for (int i = 1; i < chain.size(); i++) {
+        work = sum;
+    }
+
+    /**
+     * Method to rebuild the indexes of a chain received from a stream (file or remote peer).
+     * 
+     * @param in stream.
+     * @throws IOException
+     * @throws ClassNotFoundException 
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        reindex();
+    }
+
+    /**
+     * Method to move the verified checkpoint.
+     * 
+     * @param blocks blocks of the chain.
+     * @param height number of verified blocks.
+     */
+    private void setVerified(List<Block> blocks, int height) {
+        verifiedHeight = height;
+        verifiedHash = height == 0 ? null : blocks.get(height - 1).currentHash;
+    }
+
+    /**
+     * Method for checking the blocks from a given height. The previous blocks are assumed valid.
+     * 
+     * @param blocks blocks of the chain.
+     * @param from first height to check.
+     * @return true if the blocks and connections are valid.
+     */
+    private boolean isValid(List<Block> blocks, int from) {
+        //check each block's validity (the hashing runs on the fork-join pool for long ranges)
+        IntStream heights = IntStream.range(from, blocks.size());
+        if (blocks.size() - from >= PARALLEL_THRESHOLD) {
+            heights = heights.parallel();
+        }
+        if (!heights.allMatch(i -> blocks.get(i).isValid())) {
+            return false;
+        }
+        long latest = System.currentTimeMillis() + MAX_FUTURE_DRIFT;
+        for (int i = from; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
             //previous hash !=  hash of previous
-            if (chain.get(i).previousHash.compareTo(chain.get(i - 1).currentHash) != 0) {
+            if (i > 0 && block.previousHash.compareTo(blocks.get(i - 1).currentHash) != 0) {
+                return false;
+            }
+            //validate the timestamp: after the median of the previous blocks and not too far in the future
+            if (!block.isLegacy() && (block.timestamp > latest || block.timestamp <= getMedianTime(blocks, i))) {
+                return false;
+            }
+            //validate the difficulty (legacy blocks only before the first block with a timestamp)
+            if (block.isLegacy() ? i > 0 && !blocks.get(i - 1).isLegacy() : block.difficulty != getDifficultyAt(blocks, i)) {
                 return false;
             }
         }
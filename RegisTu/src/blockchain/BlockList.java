@@ -0,0 +1,245 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * This class represents the list of blocks of a chain. The blocks are kept in fixed size chunks that are only appended to,
+ * so adding a block never copies the blocks already in the list and snapshot() returns an immutable view in O(1).
+ * Reads need no lock; writes (add, addAll, truncate) must be serialized by the owner (BlockChain).
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class BlockList extends AbstractList<Block> implements RandomAccess, Serializable {
+
+    /**
+     * Number of blocks per chunk (power of two).
+     */
+    static final int CHUNK_BITS = 10;
+    /**
+     * Size of a chunk.
+     */
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    /**
+     * Mask for the position inside a chunk.
+     */
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Current state of the list, replaced on every write.
+     */
+    private transient volatile Snapshot current;
+
+    /**
+     * Constructor for an empty list.
+     */
+    public BlockList() {
+        current = new Snapshot(new Block[0][], 0);
+    }
+
+    /**
+     * Constructor for a list with the given blocks.
+     *
+     * @param blocks blocks, in chain order.
+     */
+    public BlockList(Collection<? extends Block> blocks) {
+        this();
+        addAll(blocks);
+    }
+
+    /**
+     * Getter for an immutable view of the blocks in the list at this moment. Later writes are not visible in the view.
+     *
+     * @return snapshot of the list.
+     */
+    public List<Block> snapshot() {
+        return current;
+    }
+
+    /**
+     * Getter for a block in a specific index.
+     *
+     * @param index index to get.
+     * @return block at given index.
+     */
+    @Override
+    public Block get(int index) {
+        return current.get(index);
+    }
+
+    /**
+     * Getter for the number of blocks.
+     *
+     * @return size of the list.
+     */
+    @Override
+    public int size() {
+        return current.size;
+    }
+
+    /**
+     * Method for appending a block to the list.
+     *
+     * @param block block to append.
+     * @return true.
+     */
+    @Override
+    public boolean add(Block block) {
+        Snapshot s = current;
+        Block[][] chunks = s.chunks;
+        int chunk = s.size >>> CHUNK_BITS;
+        //grow the (small) array of chunks, the chunks themselves are shared
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(4, chunks.length * 2));
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Block[CHUNK_SIZE];
+        }
+        //slots past the size are not visible in any snapshot
+        chunks[chunk][s.size & CHUNK_MASK] = block;
+        current = new Snapshot(chunks, s.size + 1);
+        return true;
+    }
+
+    /**
+     * Method for appending several blocks to the list.
+     *
+     * @param blocks blocks to append.
+     * @return true if the list changed.
+     */
+    @Override
+    public boolean addAll(Collection<? extends Block> blocks) {
+        for (Block block : blocks) {
+            add(block);
+        }
+        return !blocks.isEmpty();
+    }
+
+    /**
+     * Method for removing the blocks from a given height to the end. The chunk that holds the new end is copied, so the
+     * snapshots taken before are not changed by later appends.
+     *
+     * @param height new size of the list.
+     */
+    public void truncate(int height) {
+        Snapshot s = current;
+        if (height < 0 || height > s.size) {
+            throw new IndexOutOfBoundsException(height);
+        }
+        if (height == s.size) {
+            return;
+        }
+        Block[][] chunks = new Block[s.chunks.length][];
+        int last = height >>> CHUNK_BITS;
+        System.arraycopy(s.chunks, 0, chunks, 0, last);
+        if ((height & CHUNK_MASK) != 0) {
+            chunks[last] = new Block[CHUNK_SIZE];
+            System.arraycopy(s.chunks[last], 0, chunks[last], 0, height & CHUNK_MASK);
+        }
+        current = new Snapshot(chunks, height);
+    }
+
+    /**
+     * Method to write the list to a stream (only the blocks are written).
+     *
+     * @param out stream.
+     * @throws IOException
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Snapshot s = current;
+        out.writeInt(s.size);
+        for (Block block : s) {
+            out.writeObject(block);
+        }
+    }
+
+    /**
+     * Method to read the list from a stream.
+     *
+     * @param in stream.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        current = new Snapshot(new Block[0][], 0);
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            add((Block) in.readObject());
+        }
+    }
+
+    /**
+     * Immutable view of the first blocks of a set of chunks.
+     */
+    private static final class Snapshot extends AbstractList<Block> implements RandomAccess, Serializable {
+
+        /**
+         * Chunks of blocks (shared with the list).
+         */
+        private final Block[][] chunks;
+        /**
+         * Number of visible blocks.
+         */
+        private final int size;
+
+        /**
+         * Constructor for a view.
+         *
+         * @param chunks chunks of blocks.
+         * @param size number of visible blocks.
+         */
+        Snapshot(Block[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public Block get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Method to serialize the view as a plain list.
+         *
+         * @return copy of the view.
+         */
+        private Object writeReplace() {
+            return new ArrayList<>(this);
+        }
+
+        private static final long serialVersionUID = 202412201200L;
+    }
+
+    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    private static final long serialVersionUID = 202412201200L;
+    ///////////////////////////////////////////////////////////////////////////
+}
@@ -0,0 +1,788 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import utils.BinaryReader;
+import utils.BinaryWriter;
+
+/**
+ * This class represents the append-only log where the blocks of the chain are stored. The log is a directory of segment
+ * files, named after the height of their first block; each block is a record [length][crc32][bytes]. Adding a block only
+ * writes that block, and a new segment is started when the current one reaches SEGMENT_SIZE.
+ * Durability is group committed: sync() forces the file once for every record written so far, so the threads that wait
+ * for the same fsync share it.
+ * The log is also the store of the transactions: the records are read with positional reads (the files are never mapped,
+ * since any segment may be cut, rewritten or deleted) and the blocks appended or read from the log only keep their header
+ * in memory. The transactions are decoded on demand and the last BODY_CACHE_SIZE
+ * decoded lists are cached.
+ * A log can be pruned (see prune): the old segments are rewritten with only the header of the blocks that are not needed,
+ * and the heights of those blocks are kept in the file PRUNED_FILE.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class BlockLog implements Closeable {
+
+    /**
+     * Size, in bytes, after which a new segment is started.
+     */
+    public static final long SEGMENT_SIZE = 16 << 20;
+    /**
+     * Extension of the segment files.
+     */
+    static final String SEGMENT_EXTENSION = ".log";
+    /**
+     * Size of the header of a record (length and checksum).
+     */
+    static final int RECORD_HEADER = 8;
+    /**
+     * Number of decoded transaction lists kept in memory.
+     */
+    public static final int BODY_CACHE_SIZE = 1024;
+    /**
+     * File, in the log directory, with the heights of the pruned blocks.
+     */
+    static final String PRUNED_FILE = "pruned";
+    /**
+     * Type of the record of the pruned heights.
+     */
+    static final byte PRUNED_TYPE = 'P';
+
+    /**
+     * Directory of the log.
+     */
+    private final Path directory;
+    /**
+     * Size after which a new segment is started.
+     */
+    private final long segmentSize;
+    /**
+     * Segments of the log, by height.
+     */
+    private final List<Segment> segments;
+    /**
+     * Channel of the last segment (where the records are appended).
+     */
+    private FileChannel channel;
+    /**
+     * Bytes written since the log was opened (position of the next record in the whole log).
+     */
+    private volatile long written;
+    /**
+     * Bytes already forced to the disk.
+     */
+    private volatile long durable;
+    /**
+     * Lock held while forcing the file (the threads waiting on it get their records forced by the holder).
+     */
+    private final Object syncLock = new Object();
+    /**
+     * Heights of the blocks whose transactions were pruned.
+     */
+    private final BitSet pruned = new BitSet();
+    /**
+     * Height up to which the segments were pruned (every block below it was checked).
+     */
+    private int prunedHeight;
+    /**
+     * Transaction lists decoded recently, by block hash (least recently used first).
+     */
+    private final LinkedHashMap<String, List<String>> bodies = new LinkedHashMap<>(BODY_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > BODY_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Constructor that opens (or creates) a log. The segments are scanned and a torn or corrupted record at the end is
+     * removed, together with everything after it.
+     *
+     * @param directory directory of the log.
+     * @throws IOException
+     */
+    public BlockLog(String directory) throws IOException {
+        this(directory, SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructor for a log with a custom segment size (used to test the rollover in benchmarks).
+     *
+     * @param directory directory of the log.
+     * @param segmentSize size after which a new segment is started.
+     * @throws IOException
+     */
+    BlockLog(String directory, long segmentSize) throws IOException {
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.segments = new ArrayList<>();
+        Files.createDirectories(this.directory);
+        recover(List.of());
+        loadPruned();
+    }
+
+    /**
+     * Constructor that opens a log from a checkpoint written by writeCheckpoint. Only the records written after the
+     * checkpoint are scanned; if the files no longer match the checkpoint, every record is scanned.
+     *
+     * @param directory directory of the log.
+     * @param checkpoint reader positioned at the checkpoint.
+     * @throws IOException
+     */
+    public BlockLog(String directory, BinaryReader checkpoint) throws IOException {
+        this.directory = Paths.get(directory);
+        this.segmentSize = SEGMENT_SIZE;
+        this.segments = new ArrayList<>();
+        Files.createDirectories(this.directory);
+        List<Segment> known = new ArrayList<>();
+        int count = checkpoint.readVarInt();
+        for (int i = 0; i < count; i++) {
+            int first = checkpoint.readVarInt();
+            Segment segment = new Segment(this.directory.resolve(segmentName(first)), first);
+            int records = checkpoint.readVarInt();
+            long offset = 0;
+            for (int r = 0; r < records; r++) {
+                offset += checkpoint.readVarLong();
+                segment.add(offset);
+            }
+            segment.size = checkpoint.readVarLong();
+            known.add(segment);
+        }
+        recover(known);
+        loadPruned();
+    }
+
+    /**
+     * Method to write the state of the segments (first height, record offsets and size), so the log can be opened later
+     * without scanning these records. The records are forced first, so the checkpoint never describes a record that is lost
+     * in a crash.
+     *
+     * @param out writer.
+     * @throws IOException
+     */
+    public synchronized void writeCheckpoint(BinaryWriter out) throws IOException {
+        channel.force(false);
+        out.writeVarInt(segments.size());
+        for (Segment segment : segments) {
+            out.writeVarInt(segment.first);
+            out.writeVarInt(segment.count);
+            //offsets as deltas, they are small
+            long previous = 0;
+            for (int r = 0; r < segment.count; r++) {
+                out.writeVarLong(segment.offsets[r] - previous);
+                previous = segment.offsets[r];
+            }
+            out.writeVarLong(segment.size);
+        }
+    }
+
+    /**
+     * Getter for the blocks stored in the log, read from the start. Only the headers of the blocks are kept in memory.
+     *
+     * @return blocks in chain order.
+     * @throws IOException
+     */
+    public synchronized List<Block> readAll() throws IOException {
+        return readFrom(0);
+    }
+
+    /**
+     * Getter for the blocks stored in the log from a given height. Only the headers of the blocks are kept in memory.
+     *
+     * @param height height of the first block.
+     * @return blocks in chain order.
+     * @throws IOException
+     */
+    public synchronized List<Block> readFrom(int height) throws IOException {
+        List<Block> blocks = new ArrayList<>(Math.max(0, size() - height));
+        for (int h = height; h < size();) {
+            Segment segment = segments.get(segmentOf(h));
+            //the records of each segment are read at once
+            for (ByteBuffer record : segment.readFrom(h - segment.first)) {
+                Block block = decode(record);
+                block.detach(this, h++);
+                blocks.add(block);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Getter for the transactions of a stored block (decoded from the log, or from the cache).
+     *
+     * @param height height of the block.
+     * @param hash hash of the block (to check that the log still has it at that height).
+     * @return transaction list (read-only).
+     */
+    synchronized List<String> getTransactions(int height, String hash) {
+        List<String> body = bodies.get(hash);
+        if (body == null) {
+            Block block = null;
+            try {
+                if (height < size()) {
+                    Segment segment = segments.get(segmentOf(height));
+                    block = decode(segment.read(height - segment.first));
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            if (block == null || !block.currentHash.equals(hash)) {
+                throw new IllegalStateException("Block " + hash + " is no longer stored at height " + height);
+            }
+            if (block.pruned) {
+                throw new IllegalStateException("The transactions of block " + hash + " were pruned");
+            }
+            body = Collections.unmodifiableList(block.transactions);
+            bodies.put(hash, body);
+        }
+        return body;
+    }
+
+    /**
+     * Getter for the number of blocks in the log.
+     *
+     * @return number of blocks.
+     */
+    public synchronized int size() {
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        Segment last = segments.get(segments.size() - 1);
+        return last.first + last.count;
+    }
+
+    /**
+     * Method for appending a block to the log. The record is written but not forced; call sync() to make it durable.
+     *
+     * @param block block to append.
+     * @return position of the log after the record (to pass to sync).
+     * @throws IOException
+     */
+    public synchronized long append(Block block) throws IOException {
+        byte[] record = encode(block);
+        Segment segment = segments.get(segments.size() - 1);
+        //start a new segment when the current one is full
+        if (segment.size > 0 && segment.size + RECORD_HEADER + record.length > segmentSize) {
+            segment = rollover();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + record.length);
+        buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, segment.size + buffer.position());
+        }
+        segment.add(segment.size);
+        segment.size += RECORD_HEADER + record.length;
+        written += RECORD_HEADER + record.length;
+        //the transactions can be read back from the log
+        block.detach(this, size() - 1);
+        return written;
+    }
+
+    /**
+     * Method for appending several blocks to the log and forcing them to the disk once.
+     *
+     * @param blocks blocks to append.
+     * @throws IOException
+     */
+    public void appendAll(List<Block> blocks) throws IOException {
+        long position = written;
+        for (Block block : blocks) {
+            position = append(block);
+        }
+        sync(position);
+    }
+
+    /**
+     * Method for making the log durable up to a position. If another thread is already forcing the file, this one waits
+     * and usually finds its records forced when it gets the lock.
+     *
+     * @param position position returned by append.
+     * @throws IOException
+     */
+    public void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (durable >= position) {
+                return;
+            }
+            FileChannel target;
+            long upTo;
+            synchronized (this) {
+                target = channel;
+                upTo = written;
+            }
+            try {
+                target.force(false);
+            } catch (ClosedChannelException ex) {
+                //the segment was rolled over (and forced) or truncated meanwhile
+            }
+            durable = Math.max(durable, upTo);
+        }
+    }
+
+    /**
+     * Method for removing the blocks from a given height to the end (used when the chain is replaced from a fork point).
+     * The removal is forced to the disk.
+     *
+     * @param height new number of blocks.
+     * @throws IOException
+     */
+    public synchronized void truncate(int height) throws IOException {
+        if (height >= size()) {
+            return;
+        }
+        //drop the segments that start after the height
+        while (segments.size() > 1 && segments.get(segments.size() - 1).first >= height) {
+            Segment removed = segments.remove(segments.size() - 1);
+            removed.closeReader();
+            channel.close();
+            Files.delete(removed.path);
+            channel = FileChannel.open(segments.get(segments.size() - 1).path, StandardOpenOption.WRITE);
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        int keep = Math.max(0, height - segment.first);
+        long size = keep == segment.count ? segment.size : segment.offsets[keep];
+        channel.truncate(size);
+        channel.force(true);
+        segment.count = keep;
+        segment.size = size;
+        if (prunedHeight > height || pruned.length() > height) {
+            pruned.clear(height, Math.max(height, pruned.length()));
+            prunedHeight = Math.min(prunedHeight, height);
+            savePruned();
+        }
+    }
+
+    /**
+     * Method to check if the transactions of a stored block were pruned.
+     *
+     * @param height height of the block.
+     * @return true if only the header of the block is stored.
+     */
+    public synchronized boolean isPruned(int height) {
+        return pruned.get(height);
+    }
+
+    /**
+     * Getter for the height up to which the log was pruned.
+     *
+     * @return height (zero if the log keeps every block).
+     */
+    public synchronized int getPrunedHeight() {
+        return prunedHeight;
+    }
+
+    /**
+     * Method to drop the transactions of the blocks below a given height, except the blocks to retain. Only whole segments
+     * are pruned (never the last one): each is rewritten to a new file with the header of the pruned blocks and the
+     * records of the retained ones, and the new file replaces the old one. Each segment is rewritten under the lock of the
+     * log, so appends wait for one segment at a time.
+     *
+     * @param height height below which the blocks may be pruned.
+     * @param retain blocks to keep whole.
+     * @return blocks pruned (with only the header).
+     * @throws IOException
+     */
+    public List<Block> prune(int height, Predicate<Block> retain) throws IOException {
+        List<Block> removed = new ArrayList<>();
+        for (int i = 0;; i++) {
+            synchronized (this) {
+                if (i >= segments.size() - 1 || segments.get(i).first + segments.get(i).count > height) {
+                    return removed;
+                }
+                Segment segment = segments.get(i);
+                if (segment.first + segment.count > prunedHeight) {
+                    prune(segment, retain, removed);
+                    prunedHeight = segment.first + segment.count;
+                    savePruned();
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to rewrite a segment without the transactions of the blocks that are not retained.
+     *
+     * @param segment segment.
+     * @param retain blocks to keep whole.
+     * @param removed list where the pruned blocks are added.
+     * @throws IOException
+     */
+    private void prune(Segment segment, Predicate<Block> retain, List<Block> removed) throws IOException {
+        List<ByteBuffer> records = segment.readFrom(0);
+        int count = removed.size();
+        for (int r = 0; r < segment.count; r++) {
+            Block block = decode(records.get(r).duplicate());
+            if (!block.pruned && !retain.test(block)) {
+                block.prune();
+                bodies.remove(block.currentHash);
+                pruned.set(segment.first + r);
+                removed.add(block);
+                records.set(r, ByteBuffer.wrap(encode(block)));
+            }
+        }
+        if (removed.size() == count) {
+            return;
+        }
+        Path temp = segment.path.resolveSibling(segment.path.getFileName() + ".tmp");
+        long[] offsets = new long[segment.count];
+        long size = 0;
+        CRC32 crc = new CRC32();
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int r = 0; r < records.size(); r++) {
+                ByteBuffer record = records.get(r);
+                crc.reset();
+                crc.update(record.duplicate());
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER).putInt(record.remaining()).putInt((int) crc.getValue()).flip();
+                offsets[r] = size;
+                size += RECORD_HEADER + record.remaining();
+                ByteBuffer[] data = {header, record.duplicate()};
+                while (data[1].hasRemaining()) {
+                    file.write(data);
+                }
+            }
+            file.force(true);
+        }
+        //the heights are saved first: after a crash a block may be marked pruned while it is still whole, never the reverse
+        savePruned();
+        segment.closeReader();
+        Files.move(temp, segment.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        segment.offsets = offsets;
+        segment.size = size;
+    }
+
+    /**
+     * Method to read the heights of the pruned blocks.
+     *
+     * @throws IOException
+     */
+    private void loadPruned() throws IOException {
+        Path file = directory.resolve(PRUNED_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        BinaryReader in = new BinaryReader(Files.readAllBytes(file), PRUNED_TYPE);
+        try {
+            prunedHeight = Math.min(in.readVarInt(), size());
+            pruned.or(BitSet.valueOf(in.readBytes()));
+            pruned.clear(size(), Math.max(size(), pruned.length()));
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted " + file, ex);
+        }
+    }
+
+    /**
+     * Method to write the heights of the pruned blocks (replacing the file atomically).
+     *
+     * @throws IOException
+     */
+    private void savePruned() throws IOException {
+        BinaryWriter out = new BinaryWriter();
+        out.writeVarInt(prunedHeight);
+        out.writeBytes(pruned.toByteArray());
+        Path file = directory.resolve(PRUNED_FILE);
+        Path temp = directory.resolve(PRUNED_FILE + ".tmp");
+        Files.write(temp, out.toRecord(PRUNED_TYPE, 1));
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Method for closing the log (the records are forced first).
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+        for (Segment segment : segments) {
+            segment.closeReader();
+        }
+    }
+
+    /**
+     * Method to close the current segment and start a new one.
+     *
+     * @return the new segment.
+     * @throws IOException
+     */
+    private Segment rollover() throws IOException {
+        //the records of the closed segment must be durable before it is left behind
+        channel.force(false);
+        channel.close();
+        Segment segment = new Segment(directory.resolve(segmentName(size())), size());
+        segments.add(segment);
+        channel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        return segment;
+    }
+
+    /**
+     * Method to scan the segments. The scan stops at the first record that is incomplete or does not match its checksum;
+     * that segment is cut there and the segments after it are deleted.
+     * The records of a checkpoint (see writeCheckpoint) are trusted, so only the records written after it are scanned.
+     *
+     * @param known segments of a checkpoint (empty to scan everything).
+     * @throws IOException
+     */
+    private void recover(List<Segment> known) throws IOException {
+        Path[] files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(SEGMENT_EXTENSION)).sorted().toArray(Path[]::new);
+        }
+        //the checkpoint is only used if the files still have the records it describes
+        for (int i = 0; i < known.size(); i++) {
+            Segment segment = known.get(i);
+            if (i >= files.length || !files[i].equals(segment.path) || Files.size(files[i]) < segment.size) {
+                known = List.of();
+                break;
+            }
+        }
+        boolean damaged = false;
+        for (int i = 0; i < files.length; i++) {
+            Path file = files[i];
+            if (damaged) {
+                Files.delete(file);
+                continue;
+            }
+            Segment segment = i < known.size() ? known.get(i) : new Segment(file, size());
+            //records already known are not scanned again
+            long base = segment.size;
+            ByteBuffer data = segment.read(base, (int) (Files.size(file) - base));
+            CRC32 crc = new CRC32();
+            while (data.remaining() >= RECORD_HEADER) {
+                int start = data.position();
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length < 0 || length > data.remaining()) {
+                    break;
+                }
+                crc.reset();
+                crc.update(data.slice(data.position(), length));
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                data.position(data.position() + length);
+                segment.add(base + start);
+                segment.size = base + data.position();
+            }
+            segments.add(segment);
+            //cut the tail that was not fully written
+            if (segment.size < base + data.capacity()) {
+                damaged = true;
+                segment.closeReader();
+                try (FileChannel f = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    f.truncate(segment.size);
+                    f.force(true);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(directory.resolve(segmentName(0)), 0));
+        }
+        channel = FileChannel.open(segments.get(segments.size() - 1).path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Method to find the segment of a stored block.
+     *
+     * @param height height of the block.
+     * @return index of the segment.
+     */
+    private int segmentOf(int height) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments.get(middle).first <= height) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Method to get the file name of the segment starting at a height.
+     *
+     * @param first height of the first block.
+     * @return file name.
+     */
+    static String segmentName(int first) {
+        return String.format("%010d", first) + SEGMENT_EXTENSION;
+    }
+
+    /**
+     * Method to convert a block to the bytes of a record.
+     *
+     * @param block block.
+     * @return bytes of the block.
+     */
+    static byte[] encode(Block block) {
+        return block.toBytes();
+    }
+
+    /**
+     * Method to convert the bytes of a record to a block (records written before the binary format hold a serialized block).
+     *
+     * @param record bytes of the block.
+     * @return the block.
+     * @throws IOException
+     */
+    static Block decode(ByteBuffer record) throws IOException {
+        return Block.read(record);
+    }
+
+    /**
+     * Segment of the log: a file with the records of consecutive blocks.
+     */
+    private static final class Segment {
+
+        /**
+         * File of the segment.
+         */
+        final Path path;
+        /**
+         * Height of the first block.
+         */
+        final int first;
+        /**
+         * Offsets of the records in the file.
+         */
+        long[] offsets = new long[64];
+        /**
+         * Number of records.
+         */
+        int count;
+        /**
+         * Size of the valid part of the file.
+         */
+        long size;
+        /**
+         * Channel used to read the file (null until read, or after the file is replaced or deleted).
+         */
+        FileChannel reader;
+
+        Segment(Path path, int first) {
+            this.path = path;
+            this.first = first;
+        }
+
+        /**
+         * Method to register a record.
+         *
+         * @param offset offset of the record.
+         */
+        void add(long offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+
+        /**
+         * Method to read bytes of the file with a positional read (the channel is opened on the first read).
+         *
+         * @param position position of the first byte.
+         * @param length number of bytes.
+         * @return buffer with the bytes.
+         * @throws IOException if the file ends before.
+         */
+        ByteBuffer read(long position, int length) throws IOException {
+            if (reader == null) {
+                reader = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            ByteBuffer data = ByteBuffer.allocate(length);
+            while (data.hasRemaining()) {
+                if (reader.read(data, position + data.position()) < 0) {
+                    throw new EOFException(path + " ends before " + (position + length));
+                }
+            }
+            return data.flip();
+        }
+
+        /**
+         * Method to get the bytes of a record.
+         *
+         * @param index index of the record in the segment.
+         * @return the record's bytes (a copy, not a view of the file).
+         * @throws IOException
+         */
+        ByteBuffer read(int index) throws IOException {
+            long end = index + 1 < count ? offsets[index + 1] : size;
+            ByteBuffer data = read(offsets[index], (int) (end - offsets[index]));
+            return data.slice(RECORD_HEADER, data.getInt(0));
+        }
+
+        /**
+         * Method to get the bytes of the records from an index to the end of the segment, with a single read.
+         *
+         * @param index index of the first record.
+         * @return the records' bytes, in order (views of one buffer, not of the file).
+         * @throws IOException
+         */
+        List<ByteBuffer> readFrom(int index) throws IOException {
+            List<ByteBuffer> records = new ArrayList<>(count - index);
+            if (index >= count) {
+                return records;
+            }
+            long start = offsets[index];
+            ByteBuffer data = read(start, (int) (size - start));
+            for (int r = index; r < count; r++) {
+                int at = (int) (offsets[r] - start);
+                records.add(data.slice(at + RECORD_HEADER, data.getInt(at)));
+            }
+            return records;
+        }
+
+        /**
+         * Method to close the channel used to read the file, before the file is replaced or deleted.
+         *
+         * @throws IOException
+         */
+        void closeReader() throws IOException {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the blocks of the side branches of a chain (blocks that connect to the chain but are not part of it).
+ * Each block is kept with its height, so the branches that fork too far below the tip can be dropped.
+ * Not thread safe: it is only used under the lock of the BlockChain.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+class BlockTree {
+
+    /**
+     * Blocks of the side branches by hash.
+     */
+    private final Map<String, Block> blocks = new HashMap<>();
+    /**
+     * Heights of the blocks by hash.
+     */
+    private final Map<String, Integer> heights = new HashMap<>();
+
+    /**
+     * Method to check if a block is in a side branch.
+     *
+     * @param hash hash of the block.
+     * @return true if the block is in a side branch.
+     */
+    boolean contains(String hash) {
+        return blocks.containsKey(hash);
+    }
+
+    /**
+     * Getter for a block in a side branch.
+     *
+     * @param hash hash of the block.
+     * @return block, or null if it is not in a side branch.
+     */
+    Block get(String hash) {
+        return blocks.get(hash);
+    }
+
+    /**
+     * Getter for the height of a block in a side branch.
+     *
+     * @param hash hash of the block.
+     * @return height of the block, or -1 if it is not in a side branch.
+     */
+    int heightOf(String hash) {
+        return heights.getOrDefault(hash, -1);
+    }
+
+    /**
+     * Method to add a block to a side branch.
+     *
+     * @param block block.
+     * @param height height of the block.
+     */
+    void add(Block block, int height) {
+        blocks.put(block.currentHash, block);
+        heights.put(block.currentHash, height);
+    }
+
+    /**
+     * Method to remove a block from the side branches.
+     *
+     * @param hash hash of the block.
+     */
+    void remove(String hash) {
+        blocks.remove(hash);
+        heights.remove(hash);
+    }
+
+    /**
+     * Getter for the branch that ends in a block: the block and its ancestors in the side branches.
+     *
+     * @param tip last block of the branch (in the tree).
+     * @return blocks of the branch, from the fork point to the tip.
+     */
+    List<Block> branch(Block tip) {
+        List<Block> branch = new ArrayList<>();
+        for (Block block = tip; block != null; block = blocks.get(block.previousHash)) {
+            branch.add(block);
+        }
+        Collections.reverse(branch);
+        return branch;
+    }
+
+    /**
+     * Method to drop the side branches that fork below a given height. A branch is dropped whole, with every block built
+     * on it, so no block is left without its parent.
+     *
+     * @param height lowest height of the first block of a branch to keep.
+     */
+    void prune(int height) {
+        //the first block of a branch is the lowest one, nothing to drop if every block is high enough
+        if (!heights.values().stream().anyMatch(h -> h < height)) {
+            return;
+        }
+        //find the branch of every block before removing any of them
+        Map<String, Integer> forks = new HashMap<>();
+        for (String hash : blocks.keySet()) {
+            forkHeight(hash, forks);
+        }
+        for (Map.Entry<String, Integer> entry : forks.entrySet()) {
+            if (entry.getValue() < height) {
+                blocks.remove(entry.getKey());
+                heights.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Getter for the height of the first block of the branch of a block.
+     *
+     * @param hash hash of the block (in the tree).
+     * @param forks heights already found, by hash (updated with the blocks walked).
+     * @return height of the first block of the branch.
+     */
+    private int forkHeight(String hash, Map<String, Integer> forks) {
+        List<String> walked = new ArrayList<>();
+        Integer fork = forks.get(hash);
+        for (String current = hash; fork == null; ) {
+            walked.add(current);
+            String previous = blocks.get(current).previousHash;
+            if (!blocks.containsKey(previous)) {
+                fork = heights.get(current);
+            } else {
+                current = previous;
+                fork = forks.get(current);
+            }
+        }
+        for (String block : walked) {
+            forks.put(block, fork);
+        }
+        return fork;
+    }
+
+    /**
+     * Getter for the number of blocks in the side branches.
+     *
+     * @return number of blocks.
+     */
+    int size() {
+        return blocks.size();
+    }
+
+}
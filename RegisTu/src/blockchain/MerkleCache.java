@@ -0,0 +1,196 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class represents a bounded cache of merkle trees derived from the transactions of the blocks. A tree is rebuilt
+ * from its block the first time it is asked for and the least recently used trees are evicted, so a node does not need to
+ * store or receive the trees at all.
+ * Trees are built outside the lock, so two threads that miss the same root at the same time may both build it (the trees
+ * are equal and the last one stays).
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class MerkleCache {
+
+    /**
+     * Maximum number of trees kept.
+     */
+    private final int capacity;
+    /**
+     * Trees by root (least recently used first).
+     */
+    private final LinkedHashMap<String, MerkleTree> trees;
+    /**
+     * Lookups answered by the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * Lookups that had to build the tree (or found no block).
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * Trees removed to make room for others.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+    /**
+     * Time spent building trees, in nanoseconds.
+     */
+    private final AtomicLong buildNanos = new AtomicLong();
+
+    /**
+     * Constructor for an empty cache.
+     *
+     * @param capacity maximum number of trees kept.
+     */
+    public MerkleCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.trees = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MerkleTree> eldest) {
+                if (size() > MerkleCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Getter for the tree of a merkle root, rebuilt from the transactions of its block on a miss.
+     *
+     * @param root merkle root.
+     * @param chain chain with the block of the root.
+     * @return tree, or null if the block is not in the chain or its transactions were pruned.
+     */
+    public MerkleTree get(String root, BlockChain chain) {
+        synchronized (trees) {
+            MerkleTree tree = trees.get(root);
+            if (tree != null) {
+                hits.incrementAndGet();
+                return tree;
+            }
+        }
+        misses.incrementAndGet();
+        Block block = chain.getByMerkleRoot(root);
+        if (block == null || block.isPruned()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        List<String> body;
+        try {
+            body = block.transactions();
+        } catch (IllegalStateException ex) {
+            //pruned meanwhile
+            return null;
+        }
+        //the digest comes from the block, not from the root
+        MerkleTree tree = new MerkleTree(body, block.getDigest());
+        buildNanos.addAndGet(System.nanoTime() - start);
+        if (!tree.getRoot().equals(root)) {
+            return null;
+        }
+        synchronized (trees) {
+            trees.put(root, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Method to remove every tree (the metrics are kept).
+     */
+    public void clear() {
+        synchronized (trees) {
+            trees.clear();
+        }
+    }
+
+    /**
+     * Getter for the number of trees in the cache.
+     *
+     * @return number of trees.
+     */
+    public int size() {
+        synchronized (trees) {
+            return trees.size();
+        }
+    }
+
+    /**
+     * Getter for the maximum number of trees.
+     *
+     * @return capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Getter for the lookups answered by the cache.
+     *
+     * @return hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Getter for the lookups that were not in the cache.
+     *
+     * @return misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Getter for the trees evicted.
+     *
+     * @return evictions.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Getter for the fraction of lookups answered by the cache.
+     *
+     * @return hit rate (0 before the first lookup).
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Getter for the time spent building trees.
+     *
+     * @return milliseconds.
+     */
+    public long getBuildMillis() {
+        return buildNanos.get() / 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d trees, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d ms building",
+                size(), capacity, getHits(), getMisses(), getHitRate() * 100, getEvictions(), getBuildMillis());
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class represents the proof that an element is in a merkle tree: the index of its leaf and the sibling of each node
+ * in the path to the root. Bit i of the index tells if the node at level i is a left (0) or a right (1) child, so the
+ * proof is checked in one pass (see MerkleTree.isProofValid).
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class MerkleProof implements Serializable {
+
+    /**
+     * Index of the element's leaf.
+     */
+    private final int index;
+    /**
+     * Hashes of the siblings, from the leaves to the root (null for the last node of a level without a right sibling).
+     */
+    private final List<String> siblings;
+    /**
+     * Root of the tree.
+     */
+    private final String root;
+
+    /**
+     * Constructor for a proof.
+     *
+     * @param index index of the element's leaf.
+     * @param siblings hashes of the siblings, from the leaves to the root.
+     * @param root root of the tree.
+     */
+    public MerkleProof(int index, List<String> siblings, String root) {
+        this.index = index;
+        this.siblings = Collections.unmodifiableList(siblings);
+        this.root = root;
+    }
+
+    /**
+     * Getter for the index of the element's leaf (its bits are the directions of the path).
+     *
+     * @return index.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Getter for the hashes of the siblings.
+     *
+     * @return hashes, from the leaves to the root.
+     */
+    public List<String> getSiblings() {
+        return siblings;
+    }
+
+    /**
+     * Getter for the root of the tree.
+     *
+     * @return root.
+     */
+    public String getRoot() {
+        return root;
+    }
+
+    @Override
+    public String toString() {
+        return "MerkleProof{" + "index=" + index + ", siblings=" + siblings + ", root=" + root + '}';
+    }
+
+    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    private static final long serialVersionUID = 202412301200L;
+    ///////////////////////////////////////////////////////////////////////////
+}
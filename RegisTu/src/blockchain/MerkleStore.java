@@ -0,0 +1,421 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import utils.BinaryReader;
+import utils.BinaryWriter;
+
+/**
+ * This class represents the store of the merkle trees: one append-only file with a record [length][crc32][bytes] per tree,
+ * like the segments of BlockLog, and an index of the offset of each tree by its root. The trees are only read (and
+ * decoded) when asked for.
+ * The index is kept in memory and checkpointed to INDEX_EXTENSION by sync(), so opening the store only scans the records
+ * written after the last checkpoint. Removing a tree (pruned blocks) appends a record without bytes.
+ * Appends are not forced one by one; sync() forces the file, so a crash can lose the last trees, which are obtained again
+ * from the peers.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class MerkleStore implements Closeable {
+
+    /**
+     * Bytes of the header of a record (length and checksum).
+     */
+    static final int RECORD_HEADER = 8;
+    /**
+     * Type of the records of the trees.
+     */
+    static final byte TREE_TYPE = 'T';
+    /**
+     * Type of the record of the index.
+     */
+    static final byte INDEX_TYPE = 'I';
+    /**
+     * Extension of the index file (after the name of the store).
+     */
+    static final String INDEX_EXTENSION = ".idx";
+    /**
+     * Extension of the files of the trees in the old directory (one file per tree).
+     */
+    static final String TREE_EXTENSION = ".mkt";
+
+    /**
+     * File of the store.
+     */
+    private final Path file;
+    /**
+     * Channel of the file (reads are positional, so they need no lock).
+     */
+    private final FileChannel channel;
+    /**
+     * Offset of the record of each tree.
+     */
+    private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<>();
+    /**
+     * Size of the valid part of the file.
+     */
+    private volatile long size;
+    /**
+     * Size of the file covered by the last index checkpoint.
+     */
+    private long indexed;
+
+    /**
+     * Constructor that opens (or creates) a store. The index checkpoint is read and the records after it are scanned; a torn
+     * or corrupted record at the end is removed.
+     *
+     * @param fileName file of the store.
+     * @throws IOException
+     */
+    public MerkleStore(String fileName) throws IOException {
+        this.file = Paths.get(fileName).toAbsolutePath();
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        //records of the checkpoint are not scanned again
+        long from = loadIndex();
+        recover(from);
+    }
+
+    /**
+     * Method to check if the store has a tree.
+     *
+     * @param root root of the tree.
+     * @return true if the tree is stored.
+     */
+    public boolean contains(String root) {
+        return index.containsKey(root);
+    }
+
+    /**
+     * Getter for the roots of the stored trees.
+     *
+     * @return unmodifiable live view of the roots.
+     */
+    public Set<String> roots() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Getter for the number of stored trees.
+     *
+     * @return number of trees.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Method for storing a tree.
+     *
+     * @param tree tree to store.
+     * @return true if the tree was added (false if it was already stored).
+     * @throws IOException
+     */
+    public boolean put(MerkleTree tree) throws IOException {
+        return put(tree.getRoot(), tree.toBytes());
+    }
+
+    /**
+     * Method for storing the bytes of a tree (as returned by MerkleTree.toBytes or received from a peer).
+     *
+     * @param root root of the tree.
+     * @param tree bytes of the tree.
+     * @return true if the tree was added (false if it was already stored).
+     * @throws IOException
+     */
+    public synchronized boolean put(String root, byte[] tree) throws IOException {
+        if (tree.length == 0) {
+            throw new IllegalArgumentException("Empty merkle tree " + root);
+        }
+        if (index.containsKey(root)) {
+            return false;
+        }
+        index.put(root, append(root, tree));
+        return true;
+    }
+
+    /**
+     * Method for removing a tree (the space is not reclaimed).
+     *
+     * @param root root of the tree.
+     * @return true if the tree was stored.
+     * @throws IOException
+     */
+    public synchronized boolean remove(String root) throws IOException {
+        if (!index.containsKey(root)) {
+            return false;
+        }
+        append(root, new byte[0]);
+        index.remove(root);
+        return true;
+    }
+
+    /**
+     * Getter for the bytes of a tree.
+     *
+     * @param root root of the tree.
+     * @return bytes of the tree, or null if it is not stored.
+     * @throws IOException if the record is damaged.
+     */
+    public byte[] getBytes(String root) throws IOException {
+        Long offset = index.get(root);
+        if (offset == null) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        read(header, offset);
+        ByteBuffer record = ByteBuffer.allocate(header.getInt(0));
+        read(record, offset + RECORD_HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(record.array());
+        if ((int) crc.getValue() != header.getInt(4)) {
+            throw new IOException("Corrupted merkle tree " + root);
+        }
+        BinaryReader in = new BinaryReader(record.array(), TREE_TYPE);
+        try {
+            in.readText();
+            return in.readBytes();
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted merkle tree " + root, ex);
+        }
+    }
+
+    /**
+     * Getter for a tree, decoded from its record.
+     *
+     * @param root root of the tree.
+     * @return tree, or null if it is not stored.
+     * @throws IOException if the record is damaged.
+     */
+    public MerkleTree get(String root) throws IOException {
+        byte[] bytes = getBytes(root);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return MerkleTree.fromBytes(bytes);
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Corrupted merkle tree " + root, ex);
+        }
+    }
+
+    /**
+     * Method to move the trees of the old directory (one file per tree) into the store. The trees are forced and the index
+     * is saved before the files are deleted, so an interrupted migration is resumed on the next run.
+     *
+     * @param directory directory of the .mkt files.
+     * @return number of trees added.
+     * @throws IOException
+     */
+    public int migrate(String directory) throws IOException {
+        Path folder = Paths.get(directory);
+        if (!Files.isDirectory(folder)) {
+            return 0;
+        }
+        Path[] files;
+        try (Stream<Path> list = Files.list(folder)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(TREE_EXTENSION)).toArray(Path[]::new);
+        }
+        int added = 0;
+        for (Path tree : files) {
+            String name = tree.getFileName().toString();
+            byte[] bytes = Files.readAllBytes(tree);
+            if (bytes.length > 0 && put(name.substring(0, name.length() - TREE_EXTENSION.length()), bytes)) {
+                added++;
+            }
+        }
+        //the trees are durable before their files are removed
+        sync();
+        for (Path tree : files) {
+            Files.delete(tree);
+        }
+        try (Stream<Path> list = Files.list(folder)) {
+            if (list.findAny().isEmpty()) {
+                Files.delete(folder);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Method for making the trees durable and saving the index, so the next open does not scan them.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        //nothing written since the last checkpoint
+        if (indexed == size) {
+            return;
+        }
+        channel.force(false);
+        BinaryWriter out = new BinaryWriter(index.size() * 56 + 16);
+        out.writeVarLong(size);
+        out.writeVarInt(index.size());
+        for (Map.Entry<String, Long> entry : index.entrySet()) {
+            out.writeText(entry.getKey());
+            out.writeVarLong(entry.getValue());
+        }
+        Path target = file.resolveSibling(file.getFileName() + INDEX_EXTENSION);
+        Path temp = file.resolveSibling(file.getFileName() + INDEX_EXTENSION + ".tmp");
+        Files.write(temp, out.toRecord(INDEX_TYPE, 1));
+        try (FileChannel f = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            f.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        indexed = size;
+    }
+
+    /**
+     * Method for closing the store (the trees and the index are saved first).
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            sync();
+            channel.close();
+        }
+    }
+
+    /**
+     * Method to append a record.
+     *
+     * @param root root of the tree.
+     * @param tree bytes of the tree (empty to remove it).
+     * @return offset of the record.
+     * @throws IOException
+     */
+    private long append(String root, byte[] tree) throws IOException {
+        BinaryWriter out = new BinaryWriter(tree.length + root.length() + 16);
+        out.writeText(root);
+        out.writeBytes(tree);
+        byte[] record = out.toRecord(TREE_TYPE, 1);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + record.length);
+        buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+        long offset = size;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        size = offset + buffer.limit();
+        return offset;
+    }
+
+    /**
+     * Method to fill a buffer from a position of the file.
+     *
+     * @param buffer buffer to fill.
+     * @param position position in the file.
+     * @throws IOException if the file ends first.
+     */
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    /**
+     * Method to read the index checkpoint.
+     *
+     * @return size of the file covered by the checkpoint (0 if there is none or it does not match the file).
+     * @throws IOException
+     */
+    private long loadIndex() throws IOException {
+        Path target = file.resolveSibling(file.getFileName() + INDEX_EXTENSION);
+        if (!Files.exists(target)) {
+            return 0;
+        }
+        try {
+            BinaryReader in = new BinaryReader(Files.readAllBytes(target), INDEX_TYPE);
+            long covered = in.readVarLong();
+            //the file was cut or replaced after the checkpoint
+            if (covered > channel.size()) {
+                return 0;
+            }
+            for (int i = in.readVarInt(); i > 0; i--) {
+                index.put(in.readText(), in.readVarLong());
+            }
+            indexed = covered;
+            return covered;
+        } catch (IOException | RuntimeException ex) {
+            index.clear();
+            return 0;
+        }
+    }
+
+    /**
+     * Method to scan the records from a position. The scan stops at the first record that is incomplete or does not match
+     * its checksum, and the file is cut there.
+     *
+     * @param from position of the first record to scan.
+     * @throws IOException
+     */
+    private void recover(long from) throws IOException {
+        long length = channel.size();
+        long position = from;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        CRC32 crc = new CRC32();
+        while (length - position >= RECORD_HEADER) {
+            header.clear();
+            read(header, position);
+            int recordLength = header.getInt(0);
+            if (recordLength < 0 || recordLength > length - position - RECORD_HEADER) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(recordLength);
+            read(record, position + RECORD_HEADER);
+            crc.reset();
+            crc.update(record.array());
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            try {
+                BinaryReader in = new BinaryReader(record.array(), TREE_TYPE);
+                String root = in.readText();
+                //a record without bytes removes the tree
+                if (in.readVarInt() == 0) {
+                    index.remove(root);
+                } else {
+                    index.put(root, position);
+                }
+            } catch (IOException | RuntimeException ex) {
+                break;
+            }
+            position += RECORD_HEADER + recordLength;
+        }
+        size = position;
+        //cut the tail that was not fully written
+        if (position < length) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+    }
+
+}
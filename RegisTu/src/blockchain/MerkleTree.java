@@ -1,4 +1,4 @@
-//::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::: 
+//:::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
 //::                                                                         ::
 //::     Antonio Manuel Rodrigues Manso                                      ::
 //::                                                                         ::
@@ -15,28 +15,58 @@
 //////////////////////////////////////////////////////////////////////////////
 package blockchain;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import utils.BinaryReader;
+import utils.BinaryWriter;
 
 /**
  * Created on 13/09/2022, 11:42:56
  *
+ * The nodes of all levels are kept in one array, leaves first, each with the
+ * fixed width of the digest. The node i of a level has the children 2i and
+ * 2i+1 in the level below and the parent i/2 in the level above.
+ *
  * @author IPT - Ant0nio M@nso
  * @version 1.0
  */
 public final class MerkleTree implements Serializable {
 
-    // merkle tree hashs
-    private List<List<String>> hashTree;
+    // type and version of the binary records
+    static final byte RECORD_TYPE = 'M';
+    static final int RECORD_VERSION = 2;
+    // nodes of a level from which it is hashed in parallel (fork-join)
+    static final int PARALLEL_THRESHOLD = 2048;
+    // nodes hashed by each parallel task
+    static final int PARALLEL_CHUNK = 512;
+
+    // digest of the nodes
+    private transient Digest digest;
+    // hashs of the nodes (level 0 = leaves)
+    private transient byte[] nodes;
+    // index of the first node of each level (and the number of nodes at the end)
+    private transient int[] levels;
+    // open addressing table of the leaves (index + 1), built on the first proof
+    private transient volatile int[] leafIndex;
     // elements of tree
     List elements;
 
@@ -56,27 +86,57 @@ public final class MerkleTree implements Serializable {
      * @param listOfData list of data
      */
     public MerkleTree(List listOfData) {
-        this(); //build lists
+        this(listOfData, Digest.SHA256);
+    }
+
+    /**
+     * Builds a merkle tree with an list of data and a given digest (the
+     * digest of the root of blocks created before SHA-256 is Digest.of(root))
+     *
+     * @param listOfData list of data
+     * @param digest digest of the nodes
+     */
+    public MerkleTree(List<?> listOfData, Digest digest) {
+        //parallel only if the common pool has more than one thread
+        this(listOfData, digest, ForkJoinPool.getCommonPoolParallelism() > 1 ? PARALLEL_THRESHOLD : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Builds a merkle tree with an list of data, hashing in parallel the
+     * levels with at least a number of nodes (the root is the same)
+     *
+     * @param listOfData list of data
+     * @param digest digest of the nodes
+     * @param threshold nodes of a level to hash it in parallel
+     */
+    MerkleTree(List<?> listOfData, Digest digest, int threshold) {
         //save data in elements
-        elements.addAll(listOfData);
-        //calculate list of hash of elements
-        List<String> hashT = new ArrayList<>();
-        for (Object elem : listOfData) {
-            //convert T to String
-            //hash the string
-            hashT.add(getHashValue(elem.toString()));
-        }
-        //build merkle tree
-        makeTree(hashT);
+        this(digest, listOfData);
+        //hash the elements to the leaves
+        layout(listOfData.size());
+        hashLevel(-1, threshold);
+        //build the levels above the leaves
+        makeLevels(threshold);
     }
 
     /**
      * Builds an empty merkle tree
      */
     public MerkleTree() {
-        //build lists
-        hashTree = new ArrayList<>();
-        elements = new ArrayList<>();
+        this(Digest.SHA256, Collections.emptyList());
+    }
+
+    /**
+     * Builds a merkle tree with a given digest and a copy of the elements,
+     * without hashing them
+     *
+     * @param digest digest of the nodes
+     * @param listOfData list of data
+     */
+    private MerkleTree(Digest digest, List<?> listOfData) {
+        this.digest = digest;
+        this.elements = new ArrayList<Object>(listOfData);
+        layout(0);
     }
 
     /**
@@ -85,131 +145,287 @@ public final class MerkleTree implements Serializable {
      * @return root of tree
      */
     public String getRoot() {
-        //top o list
-        return hashTree.get(0).get(0);
+        //last node of the array
+        int count = levels[levels.length - 1];
+        if (count == 0) {
+            throw new IndexOutOfBoundsException("Empty merkle tree");
+        }
+        return digest.toHex(nodes, (count - 1) * digest.width);
+    }
+
+    /**
+     * digest of the nodes of the tree
+     *
+     * @return digest
+     */
+    public Digest getDigest() {
+        return digest;
     }
 
     /**
      * builds a merkle tree
      *
-     * @param hashList list of hashs
+     * @param hashList list of hashs of the leaves
      */
     public void makeTree(List<String> hashList) {
-        //add hashlist to the beginning of tree
-        hashTree.add(0, hashList);
-        //top of tree -> terminate
-        if (hashList.size() <= 1) {
-            return; // top of the tree
-        }
-        //Fazer o próximo nível
-        //new level
-        List<String> newLevel = new ArrayList<>();
-        //iterate list 2 by 2
-        for (int i = 0; i < hashList.size(); i += 2) {
-            //first element
-            String data = hashList.get(i);
-            //if have another element
-            if (i + 1 < hashList.size()) {
-                //concatenate element of right   
-                data = data + hashList.get(i + 1);
+        layout(hashList.size());
+        for (int i = 0; i < hashList.size(); i++) {
+            digest.fromHex(hashList.get(i), nodes, i * digest.width);
+        }
+        makeLevels(Integer.MAX_VALUE);
+    }
+
+    /**
+     * allocates the nodes of a tree with a number of leaves
+     *
+     * @param leaves number of leaves
+     */
+    private void layout(int leaves) {
+        //number of levels
+        int depth = 1;
+        for (int n = leaves; n > 1; n = (n + 1) / 2) {
+            depth++;
+        }
+        //first node of each level
+        levels = new int[depth + 1];
+        int n = leaves;
+        for (int level = 0; level < depth; level++) {
+            levels[level + 1] = levels[level] + n;
+            n = (n + 1) / 2;
+        }
+        nodes = new byte[levels[depth] * digest.width];
+        leafIndex = null;
+    }
+
+    /**
+     * hashs the levels above the leaves, 2 by 2
+     *
+     * @param threshold nodes of a level to hash it in parallel
+     */
+    private void makeLevels(int threshold) {
+        for (int level = 0; level + 1 < levels.length - 1; level++) {
+            hashLevel(level, threshold);
+        }
+    }
+
+    /**
+     * hashs the nodes of the level above a level
+     *
+     * @param level level of the children (-1 to hash the elements to the
+     * leaves)
+     * @param threshold nodes of a level to hash it in parallel
+     */
+    private void hashLevel(int level, int threshold) {
+        int size = levelSize(level + 1);
+        if (size >= threshold) {
+            ForkJoinPool.commonPool().invoke(new Hasher(level, 0, size));
+        } else {
+            hashRange(digest.newHasher(), level, 0, size);
+        }
+    }
+
+    /**
+     * hashs a range of nodes of the level above a level
+     *
+     * @param md hasher of the digest
+     * @param level level of the children (-1 for the leaves)
+     * @param from first node
+     * @param to last node (exclusive)
+     */
+    private void hashRange(MessageDigest md, int level, int from, int to) {
+        int w = digest.width;
+        if (level < 0) {
+            for (int i = from; i < to; i++) {
+                digest.hashLeaf(md, elements.get(i).toString(), nodes, i * w);
             }
-            //calculate hash of the elements concatenated
-            String hash = getHashValue(data);
-            //add hash to the new leval
-            newLevel.add(hash);
+            return;
+        }
+        int first = levels[level];
+        int size = levelSize(level);
+        int parent = levels[level + 1];
+        for (int i = from; i < to; i++) {
+            //right node, if there is one
+            int right = 2 * i + 1 < size ? (first + 2 * i + 1) * w : -1;
+            digest.hashNode(md, nodes, (first + 2 * i) * w, right, (parent + i) * w);
         }
-        //call the makeTree with new level
-        makeTree(newLevel);
+    }
+
+    /**
+     * task that hashs a range of nodes of a level, split in halves down to
+     * PARALLEL_CHUNK nodes
+     */
+    private final class Hasher extends RecursiveAction {
+
+        private final int level;
+        private final int from;
+        private final int to;
+
+        Hasher(int level, int from, int to) {
+            this.level = level;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_CHUNK) {
+                //each task has its own hasher
+                hashRange(digest.newHasher(), level, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Hasher(level, from, middle), new Hasher(level, middle, to));
+            }
+        }
+
+        private static final long serialVersionUID = 202412301200L;
+    }
+
+    /**
+     * number of nodes in a level
+     *
+     * @param level level (0 = leaves)
+     * @return number of nodes
+     */
+    private int levelSize(int level) {
+        return levels[level + 1] - levels[level];
+    }
+
+    /**
+     * hash of a node
+     *
+     * @param level level (0 = leaves)
+     * @param index index in the level
+     * @return hash in hex
+     */
+    private String node(int level, int index) {
+        return digest.toHex(nodes, (levels[level] + index) * digest.width);
     }
 
     /**
      * calculate the proff of the element
      *
      * @param data element
-     * @return list of proofs
+     * @return proof of the element, or null if it is not in the tree
      */
-    public List<String> getProof(Object data) {
-        //list of proofs
-        List<String> proof = new ArrayList<>();
+    public MerkleProof getProof(Object data) {
         //index of element
-        int index = elements.indexOf(data);
+        int index = indexOf(data);
         if (index < 0) { //element not found
-            return proof; // empty proof
+            return null;
         }
-        //calculate proof
-        return getProof(index, hashTree.size() - 1, proof);
+        //siblings from the leaves to the root
+        List<String> siblings = new ArrayList<>(levels.length - 2);
+        for (int level = 0, i = index; level < levels.length - 2; level++, i /= 2) {
+            //the last node of a level may have no sibling
+            int sibling = i ^ 1;
+            siblings.add(sibling < levelSize(level) ? node(level, sibling) : null);
+        }
+        return new MerkleProof(index, siblings, getRoot());
     }
 
     /**
-     * calculate the proff of the element
+     * index of the leaf of an element (the first one, like List.indexOf)
      *
-     * @param index index of element
-     * @param level level of the tree
-     * @param proof list of proofs
-     * @return list of proofs
-     */
-    private List<String> getProof(int index, int level, List<String> proof) {
-
-        if (level > 0) { // not the top
-            if (index % 2 == 0) { // is even [ index or index+1]               
-                //if have elements in the right
-                if (index + 1 < hashTree.get(level).size()) {
-                    //add element of the right
-                    proof.add(hashTree.get(level).get(index + 1));
-                } else {
-                    //add the hash of element
-                    proof.add(hashTree.get(level).get(index));
+     * @param data element
+     * @return index of the element, or -1 if it is not in the tree
+     */
+    public int indexOf(Object data) {
+        int w = digest.width;
+        int[] table = leafTable();
+        byte[] leaf = new byte[w];
+        digest.hashLeaf(digest.newHasher(), data.toString(), leaf, 0);
+        int mask = table.length - 1;
+        for (int slot = slotOf(leaf, 0) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            //same hash (and same element, the legacy hash has collisions)
+            if (Arrays.equals(nodes, index * w, index * w + w, leaf, 0, w)
+                    && (index >= elements.size() || elements.get(index).equals(data))) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * table of the leaves by hash, built once (concurrent builds make the same
+     * table)
+     *
+     * @return table of the leaves
+     */
+    private int[] leafTable() {
+        int[] table = leafIndex;
+        if (table == null) {
+            int leaves = levelSize(0);
+            //at most half full
+            table = new int[Integer.highestOneBit(Math.max(1, leaves)) * 4];
+            int mask = table.length - 1;
+            for (int i = 0; i < leaves; i++) {
+                //leaves with the same hash stay in index order
+                int slot = slotOf(nodes, i * digest.width) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
                 }
-            } else {// is odd [ index - 1 ]
-                proof.add(hashTree.get(level).get(index - 1));
+                table[slot] = i + 1;
             }
-            //calculate top level
-            return getProof(index / 2, level - 1, proof);
-        } else {
-            //add root of tree
-            proof.add(getRoot());
-            return proof;
+            leafIndex = table;
         }
+        return table;
+    }
+
+    /**
+     * slot of a node in the table of the leaves
+     *
+     * @param bytes nodes
+     * @param off offset of the node
+     * @return slot (before the mask)
+     */
+    private static int slotOf(byte[] bytes, int off) {
+        //spread the first bytes of the hash
+        int h = getInt(bytes, off) * 0x9E3779B9;
+        return h ^ (h >>> 16);
     }
 
     //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
     //:::::::::::::::::::::::::::   V A L I D A T E    T R E E  ::::::::::::::::
     ///////////////////////////////////////////////////////////////////////////
     /**
-     * verify the proof of an element
+     * verify the proof of an element, from the leaf to the root
      *
      * @param data dara
-     * @param proof list of proofs
+     * @param proof proof of the element
      * @return true if the proof is valid
      */
-    public static boolean isProofValid(Object data, List<String> proof) {
-
-        if (proof.isEmpty()) {
+    public static boolean isProofValid(Object data, MerkleProof proof) {
+        if (proof == null || proof.getIndex() < 0 || proof.getSiblings().size() >= 31) {
             return false;
         }
-        //hash of element
-        String currentHash = getHashValue(data.toString());
-        //index in the proof
-        return isProofValid(currentHash, proof, 0);
-    }
-
-    public static boolean isProofValid(String currentHash, List<String> proof, int indexOfList) {
-        //top of the tree
-        if (indexOfList == proof.size() - 1) {
-            return currentHash.equals(proof.get(proof.size() - 1));
-        }
-
-        //concatenate to the right
-        String newHash = getHashValue(currentHash + proof.get(indexOfList));
-        //verify next level
-        if (isProofValid(newHash, proof, indexOfList + 1)) {
-            return true;
+        Digest digest = Digest.of(proof.getRoot());
+        MessageDigest md = digest.newHasher();
+        int w = digest.width;
+        //current node and sibling
+        byte[] buffer = new byte[w * 2];
+        try {
+            //hash of element
+            digest.hashLeaf(md, data.toString(), buffer, 0);
+            int index = proof.getIndex();
+            for (String sibling : proof.getSiblings()) {
+                if (sibling != null) {
+                    digest.fromHex(sibling, buffer, w);
+                }
+                if ((index & 1) == 0) { // is left [ node + sibling ]
+                    digest.hashNode(md, buffer, 0, sibling == null ? -1 : w, 0);
+                } else if (sibling != null) { // is right [ sibling + node ]
+                    digest.hashNode(md, buffer, w, 0, 0);
+                } else { // a right node always has a sibling
+                    return false;
+                }
+                index >>>= 1;
+            }
+            //the path must end at the root
+            return index == 0 && digest.toHex(buffer, 0).equals(proof.getRoot());
+        } catch (IllegalArgumentException ex) { // not an hash
+            return false;
         }
-        //concatenate to the left
-        newHash = getHashValue(proof.get(indexOfList) + currentHash);
-        //verify next level
-        return isProofValid(newHash, proof, indexOfList + 1);
-
     }
 
     /**
@@ -218,33 +434,12 @@ public final class MerkleTree implements Serializable {
      * @return valid merkle tree
      */
     public boolean isValid() {
-        //verify the hash of elements  int the bottom of tree
-        for (int i = 0; i < this.elements.size(); i++) {
-            if (!getHashValue(this.elements.get(i).toString()).equals(hashTree.get(hashTree.size() - 1).get(i))) {
-                return false;
-            }
-        }
-        //verify the levels of the tree
-        for (int level = 0; level < hashTree.size() - 1; level++) {
-            // verify level            
-            for (int index = 0; index < hashTree.get(level).size(); index++) {
-                //left leaf
-                String dataLeafs = hashTree.get(level + 1).get(index * 2);
-                //if right leaf exists
-                if (index * 2 + 1 < hashTree.get(level + 1).size()) {
-                    //concatenate hashs
-                    dataLeafs = dataLeafs + hashTree.get(level + 1).get(index * 2 + 1);
-                }
-                //calculate hash of leafs
-                String hash = getHashValue(dataLeafs);
-                //verify the hash leafs
-                if (hashTree.get(level).get(index).equals(hash)) {
-                    return false;
-                }
-            }
+        //the leaves are the hashs of the elements
+        if (elements.size() != levelSize(0)) {
+            return false;
         }
-        //all is ok
-        return true;
+        //rebuild the tree and compare all nodes
+        return Arrays.equals(nodes, new MerkleTree(elements, digest).nodes);
     }
 
     //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
@@ -256,6 +451,7 @@ public final class MerkleTree implements Serializable {
     }
 
     public String toTree() {
+        List<List<String>> hashTree = getHashTree();
         //calculate maxSize of elementos in chars
         int SIZE = 9; // minimum size
         for (Object elem : elements) {
@@ -263,7 +459,7 @@ public final class MerkleTree implements Serializable {
                 SIZE = elem.toString().length();
             }
         }
-        //Build TREE        
+        //Build TREE
         StringBuilder txt = new StringBuilder();
         for (int i = 0; i < hashTree.size(); i++) {
             //spaces in the init of line
@@ -305,9 +501,9 @@ public final class MerkleTree implements Serializable {
         }
         //create file in correct path
         File file = new File(folder, fileName);
-        //write to file
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
-            out.writeObject(this);
+        //write the binary record to file
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(toBytes());
         }
     }
 
@@ -320,17 +516,145 @@ public final class MerkleTree implements Serializable {
         if (!file.exists()) {
             throw new FileNotFoundException("File not found in mktrees folder: " + fileName);
         }
-        // Read the object from the file
-        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
-            return (MerkleTree) in.readObject();
+        // Read the tree from the file (binary record or serialized object)
+        return fromBytes(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * converts the tree to a binary record (elements and the array of nodes)
+     *
+     * @return bytes of the tree
+     */
+    public byte[] toBytes() {
+        BinaryWriter out = new BinaryWriter(nodes.length + elements.size() * 64 + 16);
+        //version 1 (the levels of hashes as text are no longer written)
+        out.writeVarInt(elements.size());
+        for (Object elem : elements) {
+            out.writeText(elem.toString());
+        }
+        out.writeVarInt(0);
+        //version 2
+        out.writeVarInt(digest.ordinal());
+        out.writeVarInt(levelSize(0));
+        out.writeBytes(nodes);
+        return out.toRecord(RECORD_TYPE, RECORD_VERSION);
+    }
+
+    /**
+     * reads a tree from a binary record or from a serialized object (older
+     * files)
+     *
+     * @param bytes bytes of the tree
+     * @return merkle tree
+     * @throws IOException if the bytes are not a tree
+     * @throws ClassNotFoundException
+     */
+    public static MerkleTree fromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
+        //trees saved before the binary format
+        if (BinaryReader.isSerialized(bytes)) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return (MerkleTree) in.readObject();
+            }
+        }
+        BinaryReader in = new BinaryReader(bytes, RECORD_TYPE);
+        try {
+            //version 1
+            List<String> elements = in.readTexts();
+            List<List<String>> hashTree = new ArrayList<>();
+            int count = in.readVarInt();
+            for (int i = 0; i < count; i++) {
+                hashTree.add(in.readTexts());
+            }
+            if (!in.hasMore()) {
+                return fromHashTree(elements, hashTree);
+            }
+            //version 2
+            MerkleTree tree = new MerkleTree(Digest.values()[in.readVarInt()], elements);
+            tree.layout(in.readVarInt());
+            byte[] nodes = in.readBytes();
+            if (nodes.length != tree.nodes.length) {
+                throw new IOException("Corrupted merkle tree nodes");
+            }
+            tree.nodes = nodes;
+            return tree;
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted merkle tree", ex);
+        }
+    }
+
+    /**
+     * builds a tree from the levels of hashes in hex (root first), the format
+     * of the trees saved before the array of nodes
+     *
+     * @param elements elements of the tree
+     * @param hashTree levels of hashes (lists of strings)
+     * @return merkle tree
+     */
+    private static MerkleTree fromHashTree(List<?> elements, List<?> hashTree) {
+        if (hashTree.isEmpty() || ((List<?>) hashTree.get(0)).isEmpty()) {
+            return new MerkleTree(Digest.LEGACY, elements);
+        }
+        MerkleTree tree = new MerkleTree(Digest.of((String) ((List<?>) hashTree.get(0)).get(0)), elements);
+        List<?> leaves = (List<?>) hashTree.get(hashTree.size() - 1);
+        tree.layout(leaves.size());
+        if (tree.levels.length - 1 != hashTree.size()) {
+            throw new IllegalArgumentException("Wrong number of levels");
+        }
+        //the levels are stored from the root to the leaves
+        for (int level = 0; level < hashTree.size(); level++) {
+            List<?> hashs = (List<?>) hashTree.get(hashTree.size() - 1 - level);
+            for (int i = 0; i < hashs.size(); i++) {
+                tree.digest.fromHex((String) hashs.get(i), tree.nodes, (tree.levels[level] + i) * tree.digest.width);
+            }
+        }
+        return tree;
+    }
+
+    // fields of the serialized trees (before the array of nodes)
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("hashTree", List.class),
+        new ObjectStreamField("elements", List.class)};
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("hashTree", getHashTree());
+        fields.put("elements", elements);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        List<?> hashs = (List<?>) fields.get("hashTree", null);
+        List<?> elems = (List<?>) fields.get("elements", null);
+        try {
+            MerkleTree tree = fromHashTree(elems == null ? Collections.emptyList() : elems, hashs == null ? Collections.emptyList() : hashs);
+            this.digest = tree.digest;
+            this.nodes = tree.nodes;
+            this.levels = tree.levels;
+            this.elements = tree.elements;
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted merkle tree", ex);
         }
     }
 
     //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
     //::::::          E N C A P S U L A M E N T O                      :::::::::
-    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::    
+    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
     ///////////////////////////////////////////////////////////////////////////
+    /**
+     * levels of the tree in hex, from the root to the leaves
+     *
+     * @return levels of hashs
+     */
     public List<List<String>> getHashTree() {
+        List<List<String>> hashTree = new ArrayList<>();
+        for (int level = levels.length - 2; level >= 0; level--) {
+            List<String> hashs = new ArrayList<>(levelSize(level));
+            for (int i = 0; i < levelSize(level); i++) {
+                hashs.add(node(level, i));
+            }
+            hashTree.add(hashs);
+        }
         return hashTree;
     }
 
@@ -383,6 +707,212 @@ public final class MerkleTree implements Serializable {
         return intToHex(Math.abs(data.hashCode()));
     }
 
+    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    //::::::                    D I G E S T S                          :::::::::
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * hash functions of the nodes
+     */
+    public enum Digest {
+
+        /**
+         * hex of String.hashCode(), 4 bytes per node (blocks created before
+         * SHA-256). A parent is the hash of the hex of its children
+         * concatenated, calculated from the hashs of the children without
+         * building the strings.
+         */
+        LEGACY(4) {
+            @Override
+            MessageDigest newHasher() {
+                return null;
+            }
+
+            @Override
+            void hashLeaf(MessageDigest md, String data, byte[] out, int off) {
+                putInt(out, off, Math.abs(data.hashCode()));
+            }
+
+            @Override
+            void hashNode(MessageDigest md, byte[] nodes, int left, int right, int out) {
+                int l = getInt(nodes, left);
+                int hash = hexHashCode(l);
+                if (right >= 0) {
+                    int r = getInt(nodes, right);
+                    //hashCode(a + b) = hashCode(a) * 31^length(b) + hashCode(b)
+                    hash = hash * POW31[hexLength(r)] + hexHashCode(r);
+                }
+                putInt(nodes, out, Math.abs(hash));
+            }
+
+            @Override
+            String toHex(byte[] nodes, int off) {
+                return intToHex(getInt(nodes, off));
+            }
+
+            @Override
+            void fromHex(String hex, byte[] out, int off) {
+                putInt(out, off, Integer.parseInt(hex, 16));
+            }
+        },
+        /**
+         * SHA-256, 32 bytes per node, with a prefix byte to tell the leaves
+         * (0) from the nodes (1)
+         */
+        SHA256(32) {
+            @Override
+            MessageDigest newHasher() {
+                try {
+                    return MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+
+            @Override
+            void hashLeaf(MessageDigest md, String data, byte[] out, int off) {
+                md.update((byte) 0);
+                md.update(data.getBytes(StandardCharsets.UTF_8));
+                finish(md, out, off);
+            }
+
+            @Override
+            void hashNode(MessageDigest md, byte[] nodes, int left, int right, int out) {
+                md.update((byte) 1);
+                md.update(nodes, left, width);
+                if (right >= 0) {
+                    md.update(nodes, right, width);
+                }
+                finish(md, nodes, out);
+            }
+
+            @Override
+            String toHex(byte[] nodes, int off) {
+                return HEX.formatHex(nodes, off, off + width);
+            }
+
+            @Override
+            void fromHex(String hex, byte[] out, int off) {
+                if (hex.length() != width * 2) {
+                    throw new IllegalArgumentException("Not a SHA-256 hash: " + hex);
+                }
+                System.arraycopy(HEX.parseHex(hex), 0, out, off, width);
+            }
+
+            private void finish(MessageDigest md, byte[] out, int off) {
+                try {
+                    md.digest(out, off, width);
+                } catch (DigestException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+
+        // bytes of a node
+        final int width;
+
+        Digest(int width) {
+            this.width = width;
+        }
+
+        /**
+         * digest of a tree by the hex of its root
+         *
+         * @param root root of the tree
+         * @return digest of the nodes
+         */
+        public static Digest of(String root) {
+            return root != null && root.length() == SHA256.width * 2 ? SHA256 : LEGACY;
+        }
+
+        /**
+         * verify if a root is the hex of a node of this digest, in the form
+         * written by the trees (uppercase, full width for SHA-256)
+         *
+         * @param root root of a tree
+         * @return true if the root is a node of this digest
+         */
+        public boolean isRoot(String root) {
+            if (root == null) {
+                return false;
+            }
+            try {
+                byte[] node = new byte[width];
+                fromHex(root, node, 0);
+                return toHex(node, 0).equals(root);
+            } catch (IllegalArgumentException ex) {
+                return false;
+            }
+        }
+
+        // hasher used by a thread to build a tree (null if not needed)
+        abstract MessageDigest newHasher();
+
+        // hash of an element to a leaf
+        abstract void hashLeaf(MessageDigest md, String data, byte[] out, int off);
+
+        // hash of the left and right (-1 if none) nodes to the parent
+        abstract void hashNode(MessageDigest md, byte[] nodes, int left, int right, int out);
+
+        // hex of a node
+        abstract String toHex(byte[] nodes, int off);
+
+        // node of an hex
+        abstract void fromHex(String hex, byte[] out, int off);
+    }
+
+    // hex of the SHA-256 nodes
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+    // digits of the legacy hex
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+    // 31^n for the length of the legacy hex (up to "-80000000")
+    private static final int[] POW31 = new int[10];
+
+    static {
+        POW31[0] = 1;
+        for (int i = 1; i < POW31.length; i++) {
+            POW31[i] = POW31[i - 1] * 31;
+        }
+    }
+
+    /**
+     * length of intToHex(value)
+     *
+     * @param value value
+     * @return number of chars
+     */
+    static int hexLength(int value) {
+        long u = Math.abs((long) value);
+        int digits = Math.max(1, (67 - Long.numberOfLeadingZeros(u)) / 4);
+        return value < 0 ? digits + 1 : digits;
+    }
+
+    /**
+     * intToHex(value).hashCode() without building the string
+     *
+     * @param value value
+     * @return hashCode of the hex
+     */
+    static int hexHashCode(int value) {
+        long u = Math.abs((long) value);
+        int hash = value < 0 ? '-' : 0;
+        int digits = value < 0 ? hexLength(value) - 1 : hexLength(value);
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            hash = 31 * hash + DIGITS[(int) (u >>> shift) & 0xF];
+        }
+        return hash;
+    }
+
+    private static int getInt(byte[] bytes, int off) {
+        return (bytes[off] << 24) | ((bytes[off + 1] & 0xFF) << 16) | ((bytes[off + 2] & 0xFF) << 8) | (bytes[off + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] bytes, int off, int value) {
+        bytes[off] = (byte) (value >>> 24);
+        bytes[off + 1] = (byte) (value >>> 16);
+        bytes[off + 2] = (byte) (value >>> 8);
+        bytes[off + 3] = (byte) value;
+    }
+
     //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
     private static final long serialVersionUID = 202209131142L;
     //:::::::::::::::::::::::::::  Copyright(c) M@nso  2022  :::::::::::::::::::
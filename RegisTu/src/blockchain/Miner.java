@@ -20,13 +20,23 @@
 //////////////////////////////////////////////////////////////////////////////
 package blockchain;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Base64;
 import java.util.Date;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import p2p.P2Plistener;
 
 /**
@@ -38,64 +48,262 @@ public class Miner {
 
     //atributos 
     P2Plistener listener;            // Listener dos mineiros
-    private MinerThread[] threads;      // Threads de calculo de hashs
-    private String message;             //  Mensagem a ser minada 
-    private AtomicInteger globalNonce;  // Nonce que valida a mensagem
+    private MinerThread[] threads;      // Threads de calculo de hashs (persistentes)
+    private volatile Job job;           // Mineração atual
+    private int parallelism;            // Número de threads de mineração
+    private final List<MinerListener> jobListeners = new CopyOnWriteArrayList<>(); // Listeners do ciclo de vida
+
+    //telemetria
+    private final LongAdder retiredAttempts = new LongAdder(); // tentativas de threads já terminadas
+    private final LongAdder jobsFound = new LongAdder();       // minerações com nonce encontrado aqui
+    private final LongAdder jobsCancelled = new LongAdder();   // minerações canceladas ou terminadas por outro mineiro
+    private final LongAdder jobsExhausted = new LongAdder();   // minerações sem nonces
+    private final Map<Integer, long[]> timeToNonce = new HashMap<>(); // histogramas por dificuldade
+    private final long[] sampleTime = new long[RATE_SAMPLES];     // amostras para o hash rate
+    private final long[] sampleAttempts = new long[RATE_SAMPLES];
+    private int samples;                                          // número de amostras registadas
+    private volatile long nextSample;                             // instante da próxima amostra
+
+    /**
+     * Janela (ms) usada para calcular o hash rate
+     */
+    public static final long RATE_WINDOW = 10_000;
+
+    /**
+     * Número de amostras guardadas para o hash rate
+     */
+    private static final int RATE_SAMPLES = 32;
+
+    /**
+     * Intervalo (ms) entre as amostras do hash rate registadas pelas threads
+     */
+    private static final long SAMPLE_INTERVAL = RATE_WINDOW / (RATE_SAMPLES / 2);
+
+    /**
+     * Número de nonces que cada thread reserva de cada vez. É uma potência de
+     * 2 para que um intervalo nunca atravesse dois extra nonces.
+     */
+    public static final long NONCE_RANGE = 1L << 16;
+
+    /**
+     * Número de nonces de 31 bits em cada extra nonce
+     */
+    public static final long NONCE_SPACE = 1L << 31;
+
+    /**
+     * Nonce devolvido por uma mineração cancelada
+     */
+    public static final long CANCELLED = -1;
+
+    /**
+     * Nonce devolvido quando todos os intervalos de nonces foram testados
+     */
+    public static final long EXHAUSTED = -2;
+
+    /**
+     * Tempo máximo (ms) de espera pelas threads ao cancelar
+     */
+    public static final long CANCEL_TIMEOUT = 100;
 
     public Miner(P2Plistener listener) {
+        this(listener, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Miner(P2Plistener listener, int parallelism) {
         this.listener = listener;
+        setParallelism(parallelism);
+    }
+
+    /**
+     * Define o número de threads. Se as threads já existirem são substituidas
+     * na próxima mineração.
+     *
+     * @param parallelism número de threads (mínimo 1)
+     */
+    public synchronized void setParallelism(int parallelism) {
+        parallelism = Math.max(1, parallelism);
+        if (threads != null && threads.length != parallelism) {
+            shutdown();
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Número de threads usadas na mineração
+     *
+     * @return parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Adiciona um listener do ciclo de vida das minerações
+     *
+     * @param l listener
+     */
+    public void addMinerListener(MinerListener l) {
+        jobListeners.add(l);
+    }
+
+    /**
+     * Remove um listener do ciclo de vida das minerações
+     *
+     * @param l listener
+     */
+    public void removeMinerListener(MinerListener l) {
+        jobListeners.remove(l);
+    }
+
+    /**
+     * Termina as threads do mineiro. São criadas de novo na próxima mineração.
+     */
+    public synchronized void shutdown() {
+        if (threads == null) {
+            return;
+        }
+        //cancelar a mineração atual
+        Job current = job;
+        if (current != null && current.result.compareAndSet(0, CANCELLED)) {
+            fireCancelled(current);
+        }
+        for (MinerThread thread : threads) {
+            thread.finish();
+            retiredAttempts.add(thread.attempts.get());
+        }
+        threads = null;
     }
 
     /**
      * inicia a mineração de uma mensagem
      *
      * @param message mensagem
-     * @param zeros número de zeros do hash
+     * @param zeros número de bits a zero no inicio do hash
      * @throws Exception
      */
     public void startMining(String message, int zeros) throws Exception {
+        startMining(message, zeros, 0, 1, 0);
+    }
+
+    /**
+     * inicia a mineração de uma parte do espaço de nonces. Os intervalos de
+     * NONCE_RANGE nonces são distribuidos por vários mineiros: este mineiro
+     * fica com os intervalos fromRange + k * count + index (k = 0, 1, ...).
+     * Se já estiver a minar a mesma mensagem apenas muda a partição.
+     *
+     * @param message mensagem
+     * @param zeros número de bits a zero no inicio do hash
+     * @param index partição deste mineiro
+     * @param count número de partições
+     * @param fromRange primeiro intervalo da partição
+     * @throws Exception
+     */
+    public synchronized void startMining(String message, int zeros, int index, int count, long fromRange) throws Exception {
         //está a minar
         if (isMining()) {
+            if (message.equals(job.message)) {
+                setPartition(index, count, fromRange);
+            }
             return; // Sair
         }
-        this.message = message;
-        //configurar os atributos    
-        int numCores = 2; //Runtime.getRuntime().availableProcessors();
-        threads = new MinerThread[numCores];
-        //inicializar o globalNonce
-        globalNonce = new AtomicInteger();
-
-        //executar as threads
-        for (int i = 0; i < numCores; i++) {
-            threads[i] = new MinerThread(globalNonce, message, zeros);
-            threads[i].start();
+        //criar as threads na primeira mineração
+        if (threads == null) {
+            threads = new MinerThread[parallelism];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new MinerThread();
+                threads[i].start();
+            }
+        }
+        //entregar a nova mineração às threads paradas
+        Job next = new Job(message, zeros, threads.length);
+        next.partition = new Partition(index, count, fromRange, next.rangeLimit);
+        job = next;
+        for (MinerThread thread : threads) {
+            thread.handoff(next);
         }
         //notificar o listener
         if (listener != null) {
-            listener.onStartMining("Start Mining " + numCores + " cores", zeros);
+            listener.onStartMining("Start Mining " + threads.length + " cores", zeros);
+        }
+        for (MinerListener l : jobListeners) {
+            l.onJobStart(message, zeros);
         }
 
     }
 
     /**
-     * Terminar a mineração
+     * Terminar a mineração com um nonce encontrado noutro mineiro. O nonce só
+     * é aceite se resolver a mineração atual: um nonce de uma mensagem antiga
+     * (ou inválido) é ignorado e a mineração continua.
      *
      * @param nonce numero maior que zero
+     * @return true se o nonce é o resultado da mineração atual
      */
-    public void stopMining(int nonce) {
-        //atualizar o nonce
-        globalNonce.set(nonce);
+    public boolean stopMining(long nonce) {
+        Job current = job;
+        //nunca minou ou o nonce não resolve a mineração atual
+        if (current == null || !isSolution(current.message, nonce, current.zeros)) {
+            return false;
+        }
+        //atualizar o nonce (ou já é o resultado encontrado aqui)
+        if (current.result.compareAndSet(0, nonce)) {
+            //notificar os listeners que outro mineiro encontrou o nonce
+            fireStopped(current, nonce);
+        } else if (current.result.get() != nonce) {
+            return false;
+        }
         if (listener != null) {
             listener.onStopMining("Stop Mining" + Thread.currentThread().getName(), nonce);
         }
-        //abortar as threads
-        if (threads != null) {
-            for (MinerThread thread : threads) {
-                thread.interrupt();
-            }
-            threads = null;
+        return true;
+    }
+
+    /**
+     * Cancela a mineração sem nonce (por exemplo quando a mensagem deixou de
+     * ser válida). As threads testam o cancelamento em cada nonce, por isso
+     * param quase imediatamente; espera no máximo CANCEL_TIMEOUT ms.
+     *
+     * @throws InterruptedException
+     */
+    public void cancelMining() throws InterruptedException {
+        Job current = job;
+        if (current == null || !current.result.compareAndSet(0, CANCELLED)) {
+            return; // não está a minar
+        }
+        current.done.await(CANCEL_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (listener != null) {
+            listener.onStopMining("Cancel Mining " + current.message, CANCELLED);
         }
+        fireCancelled(current);
+    }
 
+    /**
+     * Muda os intervalos de nonces deste mineiro. As threads passam a usar a
+     * nova partição no próximo intervalo que reservarem.
+     *
+     * @param index partição deste mineiro
+     * @param count número de partições
+     * @param fromRange primeiro intervalo da partição
+     */
+    public void setPartition(int index, int count, long fromRange) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("invalid partition " + index + "/" + count);
+        }
+        Job current = job;
+        if (current != null) {
+            current.partition = new Partition(index, count, fromRange, current.rangeLimit);
+        }
+    }
+
+    /**
+     * Próximo intervalo que este mineiro vai reservar. Os intervalos abaixo
+     * deste valor já foram ou estão a ser testados.
+     *
+     * @return indice do intervalo
+     */
+    public long getNextRange() {
+        Job current = job;
+        return current == null ? 0 : current.partition.peek();
     }
 
     /**
@@ -104,7 +312,8 @@ public class Miner {
      * @return está a minerar
      */
     public boolean isMining() {
-        return threads != null && globalNonce != null && globalNonce.get() <= 0;
+        Job current = job;
+        return current != null && current.result.get() == 0;
     }
 
     /**
@@ -112,8 +321,9 @@ public class Miner {
      *
      * @return nonce
      */
-    public int getNonce() {
-        return globalNonce.get();
+    public long getNonce() {
+        Job current = job;
+        return current == null ? 0 : current.result.get();
     }
 
     /**
@@ -122,7 +332,8 @@ public class Miner {
      * @return message
      */
     public String getMessage() {
-        return message;
+        Job current = job;
+        return current == null ? null : current.message;
     }
 
     /**
@@ -137,31 +348,241 @@ public class Miner {
     private static final SimpleDateFormat df = new SimpleDateFormat("mm:ss.SSSS");
 
     /**
-     * Devolve o resultado da mineração ou zero
+     * Espera pelo resultado da mineração
      *
-     * @return nonce
+     * @return nonce, CANCELLED se a mineração foi cancelada ou EXHAUSTED se
+     * os nonces se esgotaram
      * @throws java.lang.InterruptedException
      */
-    public int waitToNonce() throws InterruptedException {
-        for (MinerThread thread : threads) {
-            thread.join();
+    public long waitToNonce() throws InterruptedException {
+        Job current = job;
+        if (current == null) {
+            return 0;
         }
-        return globalNonce.get();
+        //as threads terminam logo que o resultado é conhecido
+        while (current.result.get() == 0) {
+            current.done.await(CANCEL_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        return current.result.get();
     }
 
     /**
      * Calcula o valor do nonce da mensagem
      *
      * @param message mensagem
-     * @param zeros número de zeros
+     * @param zeros número de bits a zero
      * @return
      * @throws Exception
      */
-    public int mine(String message, int zeros) throws Exception {
+    public long mine(String message, int zeros) throws Exception {
         startMining(message, zeros);
         return waitToNonce();
     }
 
+    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    //:::::::::      T E L E M E T R I A       :::::::::::::::::::::::::::::::::
+    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Fotografia da telemetria do mineiro: tentativas por thread, hash rate
+     * na janela RATE_WINDOW e histogramas do tempo até ao nonce. As amostras
+     * do hash rate são registadas pelas threads enquanto minam, por isso o
+     * resultado não depende de quando nem de quantas vezes é chamada.
+     *
+     * @return estatísticas do mineiro
+     */
+    public synchronized MinerStats getStats() {
+        MinerThread[] running = threads == null ? new MinerThread[0] : threads;
+        String[] names = new String[running.length];
+        long[] attempts = new long[running.length];
+        long total = retiredAttempts.sum();
+        for (int i = 0; i < running.length; i++) {
+            names[i] = running[i].getName();
+            attempts[i] = running[i].attempts.get();
+            total += attempts[i];
+        }
+        //hash rate desde a amostra mais antiga dentro da janela
+        long now = System.currentTimeMillis();
+        double rate = 0;
+        synchronized (sampleTime) {
+            for (int i = Math.max(0, samples - RATE_SAMPLES); i < samples; i++) {
+                long t = sampleTime[i % RATE_SAMPLES];
+                if (now - t <= RATE_WINDOW && now > t) {
+                    rate = (total - sampleAttempts[i % RATE_SAMPLES]) * 1000.0 / (now - t);
+                    break;
+                }
+            }
+        }
+        synchronized (timeToNonce) {
+            return new MinerStats(now, names, attempts, total, rate,
+                    jobsFound.sum(), jobsCancelled.sum(), jobsExhausted.sum(), timeToNonce);
+        }
+    }
+
+    /**
+     * Regista uma amostra para o hash rate, no máximo uma a cada
+     * SAMPLE_INTERVAL ms. É chamado pelas threads depois de cada intervalo de
+     * nonces.
+     */
+    private void sample() {
+        long now = System.currentTimeMillis();
+        if (now < nextSample) {
+            return;
+        }
+        synchronized (sampleTime) {
+            if (now < nextSample) {
+                return; // outra thread registou a amostra
+            }
+            nextSample = now + SAMPLE_INTERVAL;
+            long total = retiredAttempts.sum();
+            MinerThread[] running = threads;
+            if (running != null) {
+                for (MinerThread thread : running) {
+                    total += thread.attempts.get();
+                }
+            }
+            sampleTime[samples % RATE_SAMPLES] = now;
+            sampleAttempts[samples % RATE_SAMPLES] = total;
+            samples++;
+        }
+    }
+
+    /**
+     * Regista o tempo até ao nonce de uma mineração
+     *
+     * @param j mineração
+     */
+    private void recordTimeToNonce(Job j) {
+        long millis = (System.nanoTime() - j.startTime) / 1_000_000;
+        synchronized (timeToNonce) {
+            timeToNonce.computeIfAbsent(j.zeros, z -> new long[MinerStats.HISTOGRAM_BUCKETS])[MinerStats.bucketOf(millis)]++;
+        }
+    }
+
+    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    //:::::::::      C I C L O   D E   V I D A     :::::::::::::::::::::::::::::
+    ///////////////////////////////////////////////////////////////////////////
+    private void fireFound(Job j, long nonce) {
+        jobsFound.increment();
+        recordTimeToNonce(j);
+        for (MinerListener l : jobListeners) {
+            l.onJobFound(j.message, nonce);
+        }
+    }
+
+    private void fireCancelled(Job j) {
+        jobsCancelled.increment();
+        for (MinerListener l : jobListeners) {
+            l.onJobCancelled(j.message);
+        }
+    }
+
+    private void fireStopped(Job j, long nonce) {
+        jobsCancelled.increment();
+        for (MinerListener l : jobListeners) {
+            l.onJobStopped(j.message, nonce);
+        }
+    }
+
+    private void fireExhausted(Job j) {
+        jobsExhausted.increment();
+        for (MinerListener l : jobListeners) {
+            l.onJobExhausted(j.message);
+        }
+    }
+
+    /**
+     * Mineração entregue às threads
+     */
+    private static final class Job {
+
+        final String message;               // mensagem a minar
+        final int zeros;                    // número de bits a zero
+        final long rangeLimit;              // limite (exclusivo) dos intervalos
+        final AtomicLong result = new AtomicLong(); // nonce, CANCELLED, EXHAUSTED ou 0
+        final AtomicInteger running;        // threads que ainda não largaram a mineração
+        final CountDownLatch done = new CountDownLatch(1); // todas as threads largaram
+        final long startTime = System.nanoTime();  // inicio da mineração
+        volatile Partition partition;       // intervalos atribuidos a este mineiro
+
+        Job(String message, int zeros, int threads) {
+            this.message = message;
+            this.zeros = zeros;
+            this.running = new AtomicInteger(threads);
+            this.rangeLimit = Long.MAX_VALUE / NONCE_RANGE;
+        }
+    }
+
+    /**
+     * Intervalos de nonces atribuidos a um mineiro: fromRange + k * count + index
+     */
+    private static final class Partition {
+
+        private final int index;
+        private final int count;
+        private final long fromRange;
+        private final long limit;
+        private final AtomicLong next = new AtomicLong(); // próximo k
+
+        Partition(int index, int count, long fromRange, long limit) {
+            this.index = index;
+            this.count = count;
+            this.fromRange = fromRange;
+            this.limit = limit;
+        }
+
+        /**
+         * @return próximo intervalo ou -1 se já não há intervalos
+         */
+        long claim() {
+            long range = fromRange + next.getAndIncrement() * count + index;
+            return range < limit ? range : -1;
+        }
+
+        long peek() {
+            return fromRange + next.get() * count + index;
+        }
+    }
+
+    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    //:::::::::      N O N C E   E S T E N D I D O    ::::::::::::::::::::::::::
+    ///////////////////////////////////////////////////////////////////////////
+    /*
+     * O nonce devolvido pelo mineiro é um long: os 31 bits de baixo são o
+     * nonce do bloco e os bits de cima são o extra nonce, que é juntado à
+     * mensagem quando os 31 bits se esgotam. Com extra nonce zero a mensagem
+     * e o hash são iguais aos de um nonce int.
+     */
+    /**
+     * Parte de 31 bits do nonce
+     *
+     * @param nonce nonce estendido
+     * @return nonce do bloco
+     */
+    public static int getBlockNonce(long nonce) {
+        return (int) (nonce & (NONCE_SPACE - 1));
+    }
+
+    /**
+     * Extra nonce do nonce estendido
+     *
+     * @param nonce nonce estendido
+     * @return extra nonce
+     */
+    public static long getExtraNonce(long nonce) {
+        return nonce >>> 31;
+    }
+
+    /**
+     * Mensagem minada para um extra nonce
+     *
+     * @param message mensagem original
+     * @param extraNonce extra nonce
+     * @return mensagem com o extra nonce
+     */
+    public static String getExtendedMessage(String message, long extraNonce) {
+        return extraNonce == 0 ? message : message + "/" + extraNonce + "/";
+    }
+
     //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
     //:::::::::      I N T E G R I T Y         :::::::::::::::::::::::::::::::::    
     ///////////////////////////////////////////////////////////////////////////
@@ -174,9 +595,9 @@ public class Miner {
      * @param nonce nonce
      * @return hash(mensagem + nonce)
      */
-    public static String getHash(String data, int nonce) {
+    public static String getHash(String data, long nonce) {
         try {
-            return getHash(data + nonce);
+            return getHash(getExtendedMessage(data, getExtraNonce(nonce)) + getBlockNonce(nonce));
         } catch (Exception ex) {
             return ex.getMessage();
         }
@@ -194,77 +615,250 @@ public class Miner {
         return Base64.getEncoder().encodeToString(md.digest(data.getBytes()));
     }
 
+    /**
+     * Verifica se o nonce resolve a mineração da mensagem
+     *
+     * @param message mensagem
+     * @param nonce nonce estendido
+     * @param zeros número de bits a zero
+     * @return true se hash(mensagem + nonce) tem os bits a zero
+     */
+    public static boolean isSolution(String message, long nonce, int zeros) {
+        if (message == null || nonce <= 0 || getBlockNonce(nonce) == 0) {
+            return false;
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance(hashAlgorithm);
+            String data = getExtendedMessage(message, getExtraNonce(nonce)) + getBlockNonce(nonce);
+            return hasLeadingZeroBits(md.digest(data.getBytes()), zeros);
+        } catch (NoSuchAlgorithmException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Verifica se o hash começa com o número de bits a zero pedido (alvo da
+     * prova de trabalho dos blocos)
+     *
+     * @param hash hash em bytes
+     * @param bits número de bits a zero
+     * @return true se o hash tem os bits a zero
+     */
+    public static boolean hasLeadingZeroBits(byte[] hash, int bits) {
+        if (bits > hash.length * 8) {
+            return false;
+        }
+        int full = bits >>> 3;
+        for (int i = 0; i < full; i++) {
+            if (hash[i] != 0) {
+                return false;
+            }
+        }
+        int rest = bits & 7;
+        return rest == 0 || ((hash[full] & 0xFF) >>> (8 - rest)) == 0;
+    }
+
+    /**
+     * Valor de um caracter '0' no alfabeto Base64 (A-Z a-z 0-9 + /)
+     */
+    private static final int BASE64_ZERO = 52;
+
+    /**
+     * Verifica se o hash (em bytes) começa com o número de zeros pedido,
+     * equivalente a Base64(hash).startsWith("000...") mas sem codificar o
+     * hash nem alocar memória. É o alvo dos blocos antigos (sem timestamp).
+     *
+     * @param hash hash em bytes
+     * @param zeros número de caracteres '0' no inicio do hash em Base64
+     * @return true se o hash tem os zeros
+     */
+    public static boolean hasZeros(byte[] hash, int zeros) {
+        //cada caracter Base64 corresponde a 6 bits do hash
+        for (int i = 0; i < zeros; i++) {
+            int bit = i * 6;
+            int index = bit >> 3;
+            if (index >= hash.length) {
+                return false;
+            }
+            //juntar os dois bytes onde estão os 6 bits
+            int word = (hash[index] & 0xFF) << 8;
+            if (index + 1 < hash.length) {
+                word |= hash[index + 1] & 0xFF;
+            }
+            if (((word >> (10 - (bit & 7))) & 0x3F) != BASE64_ZERO) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private class MinerThread extends Thread {
 
         //atributos da thread        
-        private final AtomicInteger sharedNonce;  // referência para o global nonce
-        private final String message;             // mensagem do bloco
-        private final int zeros;                  // número de zeros
+        private final BlockingQueue<Job> jobs;    // minerações entregues à thread
         private final MessageDigest hasher;       // calculador de  hashs da thread
+        private final byte[] nonceBuffer;         // digitos decimais do nonce
+        private final byte[] hash;                // buffer do hash calculado
+        private final AtomicLong attempts;        // hashs calculados (só esta thread escreve)
+        private volatile boolean finished;        // a thread deve terminar
+        private byte[] header;                    // bytes da mensagem do extra nonce atual
+        private long extraNonce;                  // extra nonce do header atual
 
         /**
-         * Thread para minar uma mensagem
+         * Thread persistente que mina as mensagens que lhe são entregues
          *
-         * @param globalNonce objeto partilhado com o nonce global
-         * @param ticket objeto partilhado do sistema de tickets
-         * @param message mensagem a minar
-         * @param zeros número de zeros do hash
-         * @param listener listenar do mineiro
          * @throws NoSuchAlgorithmException
          */
-        public MinerThread(AtomicInteger globalNonce, String message, int zeros) throws NoSuchAlgorithmException {
-            this.sharedNonce = globalNonce;
-            this.message = message;
-            this.zeros = zeros;
-
+        public MinerThread() throws NoSuchAlgorithmException {
+            super("miner-" + THREAD_ID.incrementAndGet());
+            setDaemon(true);
+            this.jobs = new LinkedBlockingQueue<>();
             //criar um objeto para a thread calcular hashs
             this.hasher = MessageDigest.getInstance(hashAlgorithm);
+            //buffers reutilizados em todas as tentativas e minerações
+            this.nonceBuffer = new byte[10]; // Integer.MAX_VALUE tem 10 digitos
+            this.hash = new byte[hasher.getDigestLength()];
+            this.attempts = new AtomicLong();
+        }
+
+        /**
+         * Entrega uma mineração à thread
+         *
+         * @param job mineração
+         */
+        void handoff(Job job) {
+            jobs.add(job);
+        }
+
+        /**
+         * Termina a thread depois da mineração atual
+         */
+        void finish() {
+            finished = true;
+            interrupt();
         }
 
         @Override
         public void run() {
-            try {
-                //notificar o listener
-                if (listener != null) {
-                    listener.onStartMining("RUN " + Thread.currentThread().getName(), zeros);
+            while (!finished) {
+                Job next;
+                try {
+                    //esperar (parada) pela próxima mineração
+                    next = jobs.take();
+                } catch (InterruptedException ex) {
+                    continue; // finish() ou interrupção perdida
                 }
-                //Zeros no inicio do hash
-                String prefix = String.format("%0" + zeros + "d", 0);
-                //enquanto não for encontrado o nonce ( nonce <= 0 )
-                while (sharedNonce.get() <= 0) {
-                    //gerar uma numero e testá-lo
-                    int number = Math.abs(ThreadLocalRandom.current().nextInt());
-                    if (listener != null && number % 368 == 0) {
-                        listener.onException(new Exception(number + ""), "number");
+                try {
+                    mine(next);
+                } catch (Exception ex) {
+                    //alguma coisa deu errado  
+                    if (listener != null) {
+                        listener.onStopMining("ERROR " + ex.getMessage(), -1);
                     }
+                } finally {
+                    leave(next);
+                }
+            }
+        }
 
+        /**
+         * Mina uma mensagem até ser encontrado o nonce, a mineração ser
+         * cancelada ou os intervalos se esgotarem
+         *
+         * @param job mineração
+         * @throws DigestException
+         */
+        private void mine(Job job) throws DigestException {
+            AtomicLong sharedNonce = job.result;
+            //notificar o listener
+            if (listener != null) {
+                listener.onStartMining("RUN " + getName(), job.zeros);
+            }
+            header = job.message.getBytes();
+            extraNonce = 0;
+            //enquanto não for encontrado o nonce nem cancelada ( nonce == 0 )
+            while (sharedNonce.get() == 0) {
+                //reservar o próximo intervalo de nonces
+                long range = job.partition.claim();
+                if (range < 0) {
+                    return; // intervalos esgotados
+                }
+                long start = range * NONCE_RANGE;
+                long extra = getExtraNonce(start);
+                if (extra != extraNonce) {
+                    //os 31 bits esgotaram-se, minar com o novo extra nonce
+                    extraNonce = extra;
+                    header = getExtendedMessage(job.message, extra).getBytes();
+                    if (listener != null && getBlockNonce(start) == 0) {
+                        listener.onMessage("Miner", "nonce space exhausted, extra nonce " + extra);
+                    }
+                }
+                int first = Math.max(1, getBlockNonce(start)); // zero não é nonce
+                int last = getBlockNonce(start + NONCE_RANGE - 1);
+                int number = first;
+                for (; number <= last && sharedNonce.get() == 0; number++) {
                     //verificar se o hash esta correto
-                    if (getThreadHash(message, number).startsWith(prefix)) {
-                        //atualizar o nonce e terminar as threads
-                        sharedNonce.set(number);
-                        //notifificar os listeners
-                        if (listener != null) {
-                            listener.onException(new Exception(number + ""), "nonce");
-                            listener.onNonceFound(Thread.currentThread().getName(), number);
+                    if (isValidNonce(number, job.zeros)) {
+                        long nonce = (extra << 31) | number;
+                        //atualizar o nonce e terminar as outras threads
+                        if (sharedNonce.compareAndSet(0, nonce)) {
+                            //notifificar os listeners
+                            if (listener != null) {
+                                listener.onNonceFound(getName(), nonce);
+                            }
+                            fireFound(job, nonce);
                         }
                     }
                 }
-                //notificar os listeners que a thread terminou
-                if (listener != null) {
-                    //nome da thread e o nonce
+                //publicar as tentativas uma vez por intervalo (um só escritor)
+                attempts.lazySet(attempts.get() + number - first);
+                sample();
+            }
+        }
 
-                    listener.onStopMining(Thread.currentThread().getName(), sharedNonce.get());
-                }
-            } catch (Exception ex) {
-                //alguma coisa deu errado  
-                //notificar os listeners a cada 9973 numeros
-                if (listener != null) {
-                    listener.onStopMining("ERROR " + ex.getMessage(), -1);
+        /**
+         * A thread largou a mineração. A última a largar fecha a mineração.
+         *
+         * @param job mineração
+         */
+        private void leave(Job job) {
+            //notificar os listeners que a thread terminou
+            if (listener != null) {
+                //nome da thread e o nonce
+                listener.onStopMining(getName(), job.result.get());
+            }
+            if (job.running.decrementAndGet() == 0) {
+                if (job.result.compareAndSet(0, EXHAUSTED)) {
+                    fireExhausted(job);
                 }
+                job.done.countDown();
             }
         }
 
         //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+        /**
+         * Calcula hash(mensagem + nonce) nos buffers da thread e verifica os
+         * bits a zero diretamente nos bytes do hash. Não aloca memória.
+         *
+         * @param nonce nonce positivo
+         * @param zeros número de bits a zero
+         * @return true se o hash tem os zeros pedidos
+         * @throws DigestException
+         */
+        private boolean isValidNonce(int nonce, int zeros) throws DigestException {
+            //escrever os digitos do nonce no fim do buffer
+            int start = nonceBuffer.length;
+            do {
+                nonceBuffer[--start] = (byte) ('0' + nonce % 10);
+                nonce /= 10;
+            } while (nonce > 0);
+            //hash(mensagem + nonce)
+            hasher.update(header);
+            hasher.update(nonceBuffer, start, nonceBuffer.length - start);
+            hasher.digest(hash, 0, hash.length);
+            return hasLeadingZeroBits(hash, zeros);
+        }
+
         /**
          * calcula a hash da mensagem com o nonce em Base64
          *
@@ -282,4 +876,9 @@ public class Miner {
         ///////////////////////////////////////////////////////////////////////////
     }
 
+    /**
+     * Contador para os nomes das threads
+     */
+    private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
 }
@@ -0,0 +1,66 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+/**
+ * This interface represents a listener for the lifecycle of the jobs handed to a Miner.
+ * Every method has an empty default, so implementations only override the events they need.
+ * The methods are called from the miner's threads and should return quickly.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public interface MinerListener {
+
+    /**
+     * Method for reporting that a job was handed to the miner's threads.
+     *
+     * @param message data being mined.
+     * @param zeros difficulty of the job.
+     */
+    public default void onJobStart(String message, int zeros) {
+    }
+
+    /**
+     * Method for reporting that a valid nonce was found by this miner.
+     *
+     * @param message data being mined.
+     * @param nonce nonce that was found.
+     */
+    public default void onJobFound(String message, long nonce) {
+    }
+
+    /**
+     * Method for reporting that a job was ended by a nonce found by another miner (see Miner.stopMining).
+     *
+     * @param message data being mined.
+     * @param nonce nonce found by the other miner.
+     */
+    public default void onJobStopped(String message, long nonce) {
+    }
+
+    /**
+     * Method for reporting that a job was cancelled before a nonce was found.
+     *
+     * @param message data being mined.
+     */
+    public default void onJobCancelled(String message) {
+    }
+
+    /**
+     * Method for reporting that every nonce allowed for a job was tested without success.
+     *
+     * @param message data being mined.
+     */
+    public default void onJobExhausted(String message) {
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class represents a snapshot of a Miner's telemetry, taken by Miner.getStats().
+ * The snapshot is immutable and serializable, so it can be polled by the UI or sent to a remote metrics exporter.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class MinerStats implements Serializable {
+
+    /**
+     * Number of buckets of the time-to-nonce histograms. Bucket 0 counts nonces found in less than 1 ms and bucket i
+     * counts nonces found in [2^(i-1), 2^i) ms; the last bucket also counts everything slower.
+     */
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    /**
+     * Time of the snapshot (milliseconds since the epoch).
+     */
+    private final long timestamp;
+    /**
+     * Names of the miner threads.
+     */
+    private final String[] threadNames;
+    /**
+     * Hashes tried by each miner thread (same order as the names).
+     */
+    private final long[] threadAttempts;
+    /**
+     * Hashes tried by the miner since it was created, including threads that no longer exist.
+     */
+    private final long totalAttempts;
+    /**
+     * Hashes per second over the sampling window.
+     */
+    private final double hashRate;
+    /**
+     * Number of jobs that ended with a nonce found by this miner.
+     */
+    private final long jobsFound;
+    /**
+     * Number of jobs that were cancelled or ended by a nonce found by another miner.
+     */
+    private final long jobsCancelled;
+    /**
+     * Number of jobs that ran out of nonces.
+     */
+    private final long jobsExhausted;
+    /**
+     * Time-to-nonce histograms, by difficulty.
+     */
+    private final Map<Integer, long[]> timeToNonce;
+
+    /**
+     * Constructor for a snapshot. The arrays are copied.
+     *
+     * @param timestamp time of the snapshot.
+     * @param threadNames names of the miner threads.
+     * @param threadAttempts hashes tried by each thread.
+     * @param totalAttempts hashes tried by the miner.
+     * @param hashRate hashes per second.
+     * @param jobsFound jobs ended with a nonce.
+     * @param jobsCancelled jobs cancelled.
+     * @param jobsExhausted jobs that ran out of nonces.
+     * @param timeToNonce time-to-nonce histograms by difficulty.
+     */
+    public MinerStats(long timestamp, String[] threadNames, long[] threadAttempts, long totalAttempts, double hashRate,
+            long jobsFound, long jobsCancelled, long jobsExhausted, Map<Integer, long[]> timeToNonce) {
+        this.timestamp = timestamp;
+        this.threadNames = threadNames.clone();
+        this.threadAttempts = threadAttempts.clone();
+        this.totalAttempts = totalAttempts;
+        this.hashRate = hashRate;
+        this.jobsFound = jobsFound;
+        this.jobsCancelled = jobsCancelled;
+        this.jobsExhausted = jobsExhausted;
+        TreeMap<Integer, long[]> copy = new TreeMap<>();
+        for (Map.Entry<Integer, long[]> e : timeToNonce.entrySet()) {
+            copy.put(e.getKey(), e.getValue().clone());
+        }
+        this.timeToNonce = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Getter for the time of the snapshot.
+     *
+     * @return milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Getter for the names of the miner threads.
+     *
+     * @return thread names.
+     */
+    public String[] getThreadNames() {
+        return threadNames.clone();
+    }
+
+    /**
+     * Getter for the hashes tried by each miner thread.
+     *
+     * @return attempts per thread.
+     */
+    public long[] getThreadAttempts() {
+        return threadAttempts.clone();
+    }
+
+    /**
+     * Getter for the hashes tried by the miner.
+     *
+     * @return total attempts.
+     */
+    public long getTotalAttempts() {
+        return totalAttempts;
+    }
+
+    /**
+     * Getter for the hash rate over the sampling window.
+     *
+     * @return hashes per second.
+     */
+    public double getHashRate() {
+        return hashRate;
+    }
+
+    /**
+     * Getter for the number of jobs where this miner found the nonce.
+     *
+     * @return jobs found.
+     */
+    public long getJobsFound() {
+        return jobsFound;
+    }
+
+    /**
+     * Getter for the number of jobs cancelled or ended by a nonce found by another miner.
+     *
+     * @return jobs cancelled.
+     */
+    public long getJobsCancelled() {
+        return jobsCancelled;
+    }
+
+    /**
+     * Getter for the number of jobs that ran out of nonces.
+     *
+     * @return jobs exhausted.
+     */
+    public long getJobsExhausted() {
+        return jobsExhausted;
+    }
+
+    /**
+     * Getter for the time-to-nonce histograms.
+     *
+     * @return histogram (see HISTOGRAM_BUCKETS) by difficulty.
+     */
+    public Map<Integer, long[]> getTimeToNonce() {
+        return timeToNonce;
+    }
+
+    /**
+     * Method to get the histogram bucket of a duration.
+     *
+     * @param millis duration in milliseconds.
+     * @return bucket index.
+     */
+    public static int bucketOf(long millis) {
+        if (millis < 1) {
+            return 0;
+        }
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    }
+
+    /**
+     * Method to get a string representation of the snapshot.
+     *
+     * @return String representation of the snapshot.
+     */
+    @Override
+    public String toString() {
+        StringBuilder txt = new StringBuilder();
+        txt.append(String.format("hash rate = %.0f H/s, attempts = %d, found = %d, cancelled = %d, exhausted = %d\n",
+                hashRate, totalAttempts, jobsFound, jobsCancelled, jobsExhausted));
+        for (int i = 0; i < threadNames.length; i++) {
+            txt.append(threadNames[i]).append(" = ").append(threadAttempts[i]).append("\n");
+        }
+        for (Map.Entry<Integer, long[]> e : timeToNonce.entrySet()) {
+            txt.append("difficulty ").append(e.getKey()).append(" time-to-nonce ").append(Arrays.toString(e.getValue())).append("\n");
+        }
+        return txt.toString();
+    }
+
+    //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+    private static final long serialVersionUID = 202412101200L;
+    ///////////////////////////////////////////////////////////////////////////
+}
@@ -0,0 +1,72 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package blockchain;
+
+import java.util.List;
+
+/**
+ * This class represents the change of a chain caused by a new block (see BlockChain.accept): the blocks removed from the
+ * tip and the blocks added in their place. A block appended to the tip adds only itself; a block kept in a side branch
+ * changes nothing.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class Reorg {
+
+    /**
+     * Blocks removed from the chain, in chain order.
+     */
+    private final List<Block> removed;
+    /**
+     * Blocks added to the chain, in chain order.
+     */
+    private final List<Block> added;
+
+    /**
+     * Constructor for a change.
+     *
+     * @param removed blocks removed from the chain.
+     * @param added blocks added to the chain.
+     */
+    Reorg(List<Block> removed, List<Block> added) {
+        this.removed = List.copyOf(removed);
+        this.added = List.copyOf(added);
+    }
+
+    /**
+     * Getter for the blocks removed from the chain.
+     *
+     * @return blocks, in chain order.
+     */
+    public List<Block> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Getter for the blocks added to the chain.
+     *
+     * @return blocks, in chain order.
+     */
+    public List<Block> getAdded() {
+        return added;
+    }
+
+    /**
+     * Method to check if the tip of the chain changed.
+     *
+     * @return true if blocks were added.
+     */
+    public boolean isTipChanged() {
+        return !added.isEmpty();
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package p2p;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class assembles the blocks of a node from its pending transactions. A single thread drains the pending
+ * transactions into a block when any trigger fires: maxTransactions are pending, maxBytes of transactions are pending,
+ * or the oldest pending transaction has waited maxLatency. The block is then mined before the next one is assembled,
+ * so bursts of transactions fill blocks instead of starting competing threads, and a transaction never waits more than
+ * maxLatency (plus the mining of the previous block) to be in a block.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class BlockAssembler {
+
+    /**
+     * Node whose transactions are assembled.
+     */
+    private final OremoteP2P node;
+
+    /**
+     * Listener for communication with UI.
+     */
+    private final P2Plistener listener;
+
+    /**
+     * Maximum number of transactions in a block (count trigger).
+     */
+    private final int maxTransactions;
+
+    /**
+     * Maximum number of bytes of the transactions of a block (byte trigger).
+     */
+    private final int maxBytes;
+
+    /**
+     * Maximum time, in milliseconds, a transaction waits for a block (time trigger).
+     */
+    private final long maxLatency;
+
+    /**
+     * Time each pending transaction was first seen by the assembler.
+     */
+    private final Map<String, Long> arrivals;
+
+    /**
+     * Thread that assembles the blocks.
+     */
+    private Thread worker;
+
+    /**
+     * Constructor for the assembler.
+     *
+     * @param node node whose transactions are assembled.
+     * @param listener listener to communicate with UI.
+     * @param maxTransactions maximum number of transactions in a block.
+     * @param maxBytes maximum number of bytes of the transactions of a block.
+     * @param maxLatency maximum time, in milliseconds, a transaction waits for a block.
+     */
+    public BlockAssembler(OremoteP2P node, P2Plistener listener, int maxTransactions, int maxBytes, long maxLatency) {
+        this.node = node;
+        this.listener = listener;
+        this.maxTransactions = Math.max(1, maxTransactions);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.maxLatency = Math.max(1, maxLatency);
+        this.arrivals = new HashMap<>();
+    }
+
+    /**
+     * Starts the assembler thread.
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(this::run, "block-assembler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Wakes the assembler up after transactions were added.
+     */
+    public synchronized void onTransactions() {
+        notifyAll();
+    }
+
+    /**
+     * Getter for the maximum number of transactions in a block.
+     *
+     * @return number of transactions.
+     */
+    public int getMaxTransactions() {
+        return maxTransactions;
+    }
+
+    /**
+     * Method run by the assembler thread: waits for a trigger, assembles a block and mines it.
+     */
+    private void run() {
+        while (true) {
+            List<String> block;
+            try {
+                block = await();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            try {
+                //remove the transactions used in the block (also from the peers)
+                node.removeTransactions(block);
+                //mine and add the block
+                node.createBlock(block);
+            } catch (Exception ex) {
+                listener.onException(ex, "creating block error");
+            }
+        }
+    }
+
+    /**
+     * Method to wait until a trigger fires.
+     *
+     * @return transactions of the next block, in arrival order.
+     * @throws InterruptedException
+     */
+    private synchronized List<String> await() throws InterruptedException {
+        while (true) {
+            List<String> pending = new ArrayList<>(node.transactions);
+            long now = System.currentTimeMillis();
+            //forget the transactions that left the pool (in a block of another node)
+            arrivals.keySet().retainAll(pending);
+            long oldest = now;
+            int bytes = 0;
+            for (String transaction : pending) {
+                oldest = Math.min(oldest, arrivals.computeIfAbsent(transaction, t -> now));
+                bytes += transaction.length();
+            }
+            if (!pending.isEmpty() && (pending.size() >= maxTransactions || bytes >= maxBytes || now - oldest >= maxLatency)) {
+                return take(pending);
+            }
+            //sleep until a transaction is added or the oldest one is due
+            wait(pending.isEmpty() ? 0 : oldest + maxLatency - now);
+        }
+    }
+
+    /**
+     * Method to take the transactions of a block from the pending ones, up to maxTransactions and maxBytes (a block
+     * always has at least one transaction).
+     *
+     * @param pending pending transactions, in arrival order.
+     * @return transactions of the block.
+     */
+    private List<String> take(List<String> pending) {
+        List<String> block = new ArrayList<>();
+        int bytes = 0;
+        for (String transaction : pending) {
+            if (block.size() == maxTransactions || (!block.isEmpty() && bytes + transaction.length() > maxBytes)) {
+                break;
+            }
+            block.add(transaction);
+            bytes += transaction.length();
+        }
+        for (String transaction : block) {
+            arrivals.remove(transaction);
+        }
+        return block;
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package p2p;
+
+import blockchain.Block;
+import blockchain.BlockChain;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * This class downloads the transactions of blocks whose headers were already checked, from several peers at once.
+ * The blocks are split in batches of BlockChain.BODY_BATCH; each peer has up to MAX_IN_FLIGHT batches requested at a time,
+ * so faster peers take more batches. A batch that takes longer than STALL_TIMEOUT is also requested from an idle peer,
+ * and a peer that fails or sends transactions that don't match the headers gets no more batches.
+ * The transactions are set on the headers, which are kept in chain order, so the chain can be appended when every
+ * batch has arrived, whatever the order they arrived in.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class BlockDownloader {
+
+    /**
+     * Maximum number of requests in flight to each peer.
+     */
+    public static final int MAX_IN_FLIGHT = 2;
+
+    /**
+     * Time, in milliseconds, after which a request is also sent to another peer.
+     */
+    public static final long STALL_TIMEOUT = 10_000;
+
+    /**
+     * Headers of the blocks, in chain order.
+     */
+    private final List<Block> blocks;
+
+    /**
+     * Batches that arrived.
+     */
+    private final boolean[] done;
+
+    /**
+     * Time of the last request of each batch (zero if never requested).
+     */
+    private final long[] requested;
+
+    /**
+     * Batches waiting for a peer.
+     */
+    private final Deque<Integer> pending;
+
+    /**
+     * Number of batches that did not arrive.
+     */
+    private int remaining;
+
+    /**
+     * Number of threads still requesting batches.
+     */
+    private int workers;
+
+    /**
+     * True when the download ended (complete or not).
+     */
+    private boolean finished;
+
+    /**
+     * Constructor for a download.
+     *
+     * @param blocks headers of the blocks (without transactions), in chain order.
+     */
+    public BlockDownloader(List<Block> blocks) {
+        this.blocks = blocks;
+        int batches = (blocks.size() + BlockChain.BODY_BATCH - 1) / BlockChain.BODY_BATCH;
+        this.done = new boolean[batches];
+        this.requested = new long[batches];
+        this.pending = new ArrayDeque<>();
+        for (int i = 0; i < batches; i++) {
+            pending.add(i);
+        }
+        this.remaining = batches;
+    }
+
+    /**
+     * Downloads the transactions of every block.
+     *
+     * @param peers peers to download from.
+     * @return true if every block got its transactions.
+     * @throws InterruptedException
+     */
+    public boolean download(List<IremoteP2P> peers) throws InterruptedException {
+        synchronized (this) {
+            for (IremoteP2P peer : peers) {
+                for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+                    Thread worker = new Thread(() -> fetch(peer), "block-download");
+                    worker.setDaemon(true);
+                    workers++;
+                    worker.start();
+                }
+            }
+            try {
+                //wait for every batch (or until no peer is left)
+                while (remaining > 0 && workers > 0) {
+                    wait();
+                }
+                return remaining == 0;
+            } finally {
+                finished = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Method run by each thread: requests batches from a peer until there are none left or the peer fails.
+     *
+     * @param peer peer to request from.
+     */
+    private void fetch(IremoteP2P peer) {
+        try {
+            int batch;
+            while ((batch = next()) >= 0) {
+                List<Block> wanted = batch(batch);
+                List<String> hashes = new ArrayList<>(wanted.size());
+                for (Block block : wanted) {
+                    hashes.add(block.getCurrentHash());
+                }
+                List<List<String>> bodies;
+                try {
+                    bodies = peer.getBlockBodies(hashes);
+                } catch (RemoteException ex) {
+                    failed(batch);
+                    return;
+                }
+                //the peer does not have the blocks or sent other transactions
+                if (!accept(batch, wanted, bodies)) {
+                    failed(batch);
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            //the download was abandoned
+        } finally {
+            synchronized (this) {
+                workers--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Method to get the next batch to request: a pending one or, if there are none, the one requested longest ago if it
+     * is taking more than STALL_TIMEOUT.
+     *
+     * @return index of the batch, or -1 if the download ended.
+     * @throws InterruptedException
+     */
+    private synchronized int next() throws InterruptedException {
+        while (!finished && remaining > 0) {
+            long now = System.currentTimeMillis();
+            if (!pending.isEmpty()) {
+                int batch = pending.poll();
+                requested[batch] = now;
+                return batch;
+            }
+            int stalled = -1;
+            for (int i = 0; i < done.length; i++) {
+                if (!done[i] && now - requested[i] > STALL_TIMEOUT && (stalled < 0 || requested[i] < requested[stalled])) {
+                    stalled = i;
+                }
+            }
+            if (stalled >= 0) {
+                requested[stalled] = now;
+                return stalled;
+            }
+            wait(STALL_TIMEOUT / 4);
+        }
+        return -1;
+    }
+
+    /**
+     * Method to check the transactions of a batch against the headers and set them.
+     *
+     * @param batch index of the batch.
+     * @param wanted headers of the batch.
+     * @param bodies transactions sent by the peer.
+     * @return true if every block got its transactions.
+     */
+    private boolean accept(int batch, List<Block> wanted, List<List<String>> bodies) {
+        if (bodies == null || bodies.size() < wanted.size()) {
+            return false;
+        }
+        for (int i = 0; i < wanted.size(); i++) {
+            //each body must match the merkle root of its (already checked) header
+            if (!wanted.get(i).setTransactions(bodies.get(i))) {
+                return false;
+            }
+        }
+        synchronized (this) {
+            if (!done[batch]) {
+                done[batch] = true;
+                remaining--;
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Method to put a failed batch back in the queue.
+     *
+     * @param batch index of the batch.
+     */
+    private synchronized void failed(int batch) {
+        if (!done[batch] && !pending.contains(batch)) {
+            pending.addFirst(batch);
+            requested[batch] = 0;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Getter for the headers of a batch.
+     *
+     * @param batch index of the batch.
+     * @return headers.
+     */
+    private List<Block> batch(int batch) {
+        int from = batch * BlockChain.BODY_BATCH;
+        return blocks.subList(from, Math.min(blocks.size(), from + BlockChain.BODY_BATCH));
+    }
+
+}
@@ -12,6 +12,8 @@ package p2p;
 
 import blockchain.Block;
 import blockchain.BlockChain;
+import blockchain.MinerStats;
+import java.math.BigInteger;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.security.Key;
@@ -109,13 +111,35 @@ public interface IremoteP2P extends Remote {
      */
     public void startMining(String msg, int zeros) throws RemoteException;
 
+    /**
+     * Joins a mining operation coordinated by another node, searching only the given partition of the nonce ranges.
+     * If this node is already mining the same data, only its partition is changed.
+     * 
+     * @param coordinator node coordinating the operation, notified through stopMining when a nonce is found.
+     * @param msg data to be used in mining.
+     * @param zeros difficulty.
+     * @param partition index of this node's partition.
+     * @param partitions number of partitions.
+     * @param fromRange first nonce range of the partitioning.
+     * @throws RemoteException 
+     */
+    public void joinMining(IremoteP2P coordinator, String msg, int zeros, int partition, int partitions, long fromRange) throws RemoteException;
+
+    /**
+     * Gets the next nonce range the node's miner will search.
+     * 
+     * @return next nonce range index.
+     * @throws RemoteException 
+     */
+    public long getMiningRange() throws RemoteException;
+
     /**
      * Stops the mining operation.
      * 
      * @param nonce found nonce.
      * @throws RemoteException 
      */
-    public void stopMining(int nonce) throws RemoteException;
+    public void stopMining(long nonce) throws RemoteException;
 
     /**
      * Checks if the miner of a node is mining.
@@ -125,6 +149,14 @@ public interface IremoteP2P extends Remote {
      */
     public boolean isMining() throws RemoteException;
 
+    /**
+     * Gets a snapshot of the telemetry of the node's miner (hash rate, attempts per thread and time-to-nonce).
+     * 
+     * @return miner statistics.
+     * @throws RemoteException 
+     */
+    public MinerStats getMiningStats() throws RemoteException;
+
     /**
      * Starts the mining operation.
      * 
@@ -133,7 +165,7 @@ public interface IremoteP2P extends Remote {
      * @return nonce
      * @throws RemoteException 
      */
-    public int mine(String msg, int zeros) throws RemoteException;
+    public long mine(String msg, int zeros) throws RemoteException;
 
     //==========================
     //=============== Blockchain
@@ -161,6 +193,14 @@ public interface IremoteP2P extends Remote {
      * @throws RemoteException 
      */
     public String getBlockchainLastHash() throws RemoteException;
+
+    /**
+     * Gets the work of the node's chain (sum of the work of its blocks).
+     * 
+     * @return work of the chain.
+     * @throws RemoteException 
+     */
+    public BigInteger getBlockchainWork() throws RemoteException;
     
     /**
      * Getter for a node's Blockchain.
@@ -170,6 +210,42 @@ public interface IremoteP2P extends Remote {
      */
     public BlockChain getBlockchain() throws RemoteException;
 
+    /**
+     * Finds the last block the node's chain has in common with another chain.
+     * 
+     * @param locator block locator of the other chain (BlockChain.getLocator).
+     * @return number of blocks in common.
+     * @throws RemoteException 
+     */
+    public int findForkPoint(List<String> locator) throws RemoteException;
+
+    /**
+     * Gets the headers of the node's blocks from a given height.
+     * 
+     * @param from height of the first block.
+     * @param max maximum number of headers.
+     * @return headers (BlockChain.readHeaders).
+     * @throws RemoteException 
+     */
+    public byte[] getBlockHeaders(int from, int max) throws RemoteException;
+
+    /**
+     * Gets the transactions of some of the node's blocks.
+     * 
+     * @param hashes hashes of the blocks.
+     * @return transactions of each block (null if the node does not have it).
+     * @throws RemoteException 
+     */
+    public List<List<String>> getBlockBodies(List<String> hashes) throws RemoteException;
+
+    /**
+     * Gets the height below which the node may have pruned the transactions of its blocks.
+     * 
+     * @return pruned height (zero for a node that keeps every block).
+     * @throws RemoteException 
+     */
+    public int getPrunedHeight() throws RemoteException;
+
     /**
      * Synchronizes the Blockchain between peers of the network.
      * 
@@ -0,0 +1,229 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package p2p;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class coordinates a mining operation across the network. Each participating node gets its own partition of the
+ * nonce ranges, so the peers never test the same nonce, and the partitions are reassigned when peers join or drop out.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class MiningCoordinator {
+
+    /**
+     * Interval, in milliseconds, between checks on the participating peers.
+     */
+    public static final long MONITOR_INTERVAL = 1000;
+
+    /**
+     * Node that coordinates the operation (also a participant).
+     */
+    private final IremoteP2P self;
+
+    /**
+     * Listener for communication with UI.
+     */
+    private final P2Plistener listener;
+
+    /**
+     * Nodes currently mining a partition, in partition order.
+     */
+    private final CopyOnWriteArrayList<IremoteP2P> participants;
+
+    /**
+     * Data being mined.
+     */
+    private String message;
+
+    /**
+     * Difficulty of the operation.
+     */
+    private int zeros;
+
+    /**
+     * True while an operation is being coordinated.
+     */
+    private volatile boolean active;
+
+    /**
+     * Thread that checks if the participants are still reachable.
+     */
+    private volatile Thread monitor;
+
+    /**
+     * Constructor for the coordinator.
+     *
+     * @param self node that coordinates the operations.
+     * @param listener listener to communicate with UI.
+     */
+    public MiningCoordinator(IremoteP2P self, P2Plistener listener) {
+        this.self = self;
+        this.listener = listener;
+        this.participants = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Starts a mining operation with this node and every idle peer.
+     *
+     * @param msg data to mine.
+     * @param zeros difficulty.
+     * @param peers known peers.
+     */
+    public synchronized void start(String msg, int zeros, List<IremoteP2P> peers) {
+        //already coordinating this data
+        if (active && msg.equals(message)) {
+            return;
+        }
+        //end the previous operation and its monitor
+        stop();
+        this.message = msg;
+        this.zeros = zeros;
+        this.active = true;
+        //this node and the idle peers
+        participants.clear();
+        participants.add(self);
+        for (IremoteP2P peer : peers) {
+            try {
+                if (!peer.isMining()) {
+                    participants.add(peer);
+                }
+            } catch (RemoteException ex) {
+                //unreachable peer, leave it out
+            }
+        }
+        //give each one its partition
+        assign(0);
+        //watch for peers dropping out
+        monitor = new Thread(this::monitor, "mining-coordinator");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    /**
+     * Adds a new peer to the running operation and reassigns the partitions.
+     *
+     * @param peer peer that joined the network.
+     */
+    public synchronized void addPeer(IremoteP2P peer) {
+        if (!active || participants.contains(peer)) {
+            return;
+        }
+        try {
+            if (peer.isMining()) {
+                return;
+            }
+        } catch (RemoteException ex) {
+            return;
+        }
+        participants.add(peer);
+        listener.onMessage("Mining", "peer joined, reassigning " + participants.size() + " partitions\n");
+        reassign();
+    }
+
+    /**
+     * Ends the current operation.
+     */
+    public synchronized void stop() {
+        active = false;
+        participants.clear();
+        if (monitor != null) {
+            monitor.interrupt();
+            monitor = null;
+        }
+    }
+
+    /**
+     * Checks if an operation is being coordinated.
+     *
+     * @return true if active.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Reassigns the partitions to the current participants, starting after the highest range already searched by any of them.
+     */
+    private synchronized void reassign() {
+        if (!active) {
+            return;
+        }
+        long fromRange = 0;
+        for (IremoteP2P participant : participants) {
+            try {
+                fromRange = Math.max(fromRange, participant.getMiningRange());
+            } catch (RemoteException ex) {
+                participants.remove(participant);
+            }
+        }
+        assign(fromRange);
+    }
+
+    /**
+     * Sends each participant its partition. Participants that fail are removed and the partitions are reassigned.
+     *
+     * @param fromRange first nonce range of the partitioning.
+     */
+    private void assign(long fromRange) {
+        List<IremoteP2P> failed = new ArrayList<>();
+        int count = participants.size();
+        for (int i = 0; i < count; i++) {
+            try {
+                participants.get(i).joinMining(self, message, zeros, i, count, fromRange);
+            } catch (RemoteException ex) {
+                failed.add(participants.get(i));
+            }
+        }
+        if (!failed.isEmpty()) {
+            participants.removeAll(failed);
+            reassign();
+        }
+    }
+
+    /**
+     * Periodically checks the participants and reassigns the partitions if any of them dropped out.
+     */
+    private void monitor() {
+        //a monitor replaced by a newer operation ends
+        while (active && monitor == Thread.currentThread()) {
+            try {
+                Thread.sleep(MONITOR_INTERVAL);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            List<IremoteP2P> dropped = new ArrayList<>();
+            for (IremoteP2P participant : participants) {
+                if (participant == self) {
+                    continue;
+                }
+                try {
+                    participant.getAdress();
+                } catch (RemoteException ex) {
+                    dropped.add(participant);
+                }
+            }
+            if (!dropped.isEmpty()) {
+                synchronized (this) {
+                    participants.removeAll(dropped);
+                    listener.onMessage("Mining", dropped.size() + " peer(s) dropped, reassigning partitions\n");
+                    reassign();
+                }
+            }
+        }
+    }
+
+}
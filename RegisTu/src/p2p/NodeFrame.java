@@ -1493,7 +1493,7 @@ public class NodeFrame extends javax.swing.JFrame implements P2Plistener {
      * @param nonce zeros used in the operation.
      */
     @Override
-    public void onStopMining(String message, int nonce) {
+    public void onStopMining(String message, long nonce) {
         txtInternalLog.append("Stopping " + message + " " + nonce + "\n");
     }
 
@@ -1504,7 +1504,7 @@ public class NodeFrame extends javax.swing.JFrame implements P2Plistener {
      * @param nonce nonce that was found.
      */
     @Override
-    public void onNonceFound(String message, int nonce) {
+    public void onNonceFound(String message, long nonce) {
         txtInternalLog.append(message + "\t" + nonce + "\n");
     }
 
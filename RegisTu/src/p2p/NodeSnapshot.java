@@ -0,0 +1,179 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ * 
+ * Aluno 24633 @ IPT, Dec 2024.
+ * 
+ * The code in this file was developed for learning and experimentation purposes.
+ * 
+ */
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import utils.BinaryReader;
+import utils.BinaryWriter;
+
+/**
+ * This class represents the state a node needs to start without rebuilding it: a snapshot of the chain
+ * (BlockChain.toSnapshot), the known users, so the "users" directory doesn't have to be listed before the node is ready,
+ * and the users served by the node (whose blocks a pruned node keeps). The merkle trees are known from the index of the
+ * MerkleStore, so the nodes now write the list of trees empty.
+ * The file is replaced atomically, so a crash leaves either the old or the new snapshot.
+ * 
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class NodeSnapshot {
+
+    /**
+     * Type of the records.
+     */
+    static final byte RECORD_TYPE = 'N';
+    /**
+     * Version of the records.
+     */
+    static final int RECORD_VERSION = 2;
+
+    /**
+     * Snapshot of the chain.
+     */
+    private final byte[] chain;
+    /**
+     * Known users.
+     */
+    private final List<String> users;
+    /**
+     * Known merkle trees (roots).
+     */
+    private final List<String> trees;
+    /**
+     * Users served by the node and the pruned height when each was first served.
+     */
+    private final Map<String, Integer> served;
+
+    /**
+     * Constructor for a snapshot.
+     * 
+     * @param chain snapshot of the chain.
+     * @param users known users.
+     * @param trees known merkle trees.
+     * @param served users served by the node and the pruned height when each was first served.
+     */
+    public NodeSnapshot(byte[] chain, Collection<String> users, Collection<String> trees, Map<String, Integer> served) {
+        this.chain = chain;
+        this.users = new ArrayList<>(users);
+        this.trees = new ArrayList<>(trees);
+        this.served = new HashMap<>(served);
+    }
+
+    /**
+     * Getter for the snapshot of the chain.
+     * 
+     * @return bytes for BlockChain.fromSnapshot.
+     */
+    public byte[] getChain() {
+        return chain;
+    }
+
+    /**
+     * Getter for the known users.
+     * 
+     * @return users.
+     */
+    public List<String> getUsers() {
+        return users;
+    }
+
+    /**
+     * Getter for the known merkle trees.
+     * 
+     * @return roots of the trees.
+     */
+    public List<String> getTrees() {
+        return trees;
+    }
+
+    /**
+     * Getter for the users served by the node.
+     * 
+     * @return pruned height when each user was first served.
+     */
+    public Map<String, Integer> getServed() {
+        return served;
+    }
+
+    /**
+     * Method to write the snapshot to a file. The bytes go to a temporary file that is forced and then moved over the old
+     * snapshot.
+     * 
+     * @param fileName file name/path.
+     * @throws IOException 
+     */
+    public void save(String fileName) throws IOException {
+        BinaryWriter out = new BinaryWriter(chain.length + 64 * (users.size() + trees.size()) + 64);
+        //version 1
+        out.writeBytes(chain);
+        out.writeTexts(users);
+        out.writeTexts(trees);
+        //version 2
+        out.writeVarInt(served.size());
+        for (Map.Entry<String, Integer> user : served.entrySet()) {
+            out.writeText(user.getKey());
+            out.writeVarInt(user.getValue());
+        }
+        Path file = Paths.get(fileName).toAbsolutePath();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(out.toRecord(RECORD_TYPE, RECORD_VERSION));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Method to read a snapshot from a file.
+     * 
+     * @param fileName file name/path.
+     * @return snapshot, or null if there is no (readable) snapshot.
+     */
+    public static NodeSnapshot load(String fileName) {
+        Path file = Paths.get(fileName);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            BinaryReader in = new BinaryReader(Files.readAllBytes(file), RECORD_TYPE);
+            byte[] chain = in.readBytes();
+            List<String> users = in.readTexts();
+            List<String> trees = in.readTexts();
+            Map<String, Integer> served = new HashMap<>();
+            if (in.hasMore()) {
+                for (int i = in.readVarInt(); i > 0; i--) {
+                    served.put(in.readText(), in.readVarInt());
+                }
+            }
+            return new NodeSnapshot(chain, users, trees, served);
+        } catch (IOException | RuntimeException ex) {
+            //the node starts from the log and the directories
+            return null;
+        }
+    }
+
+}
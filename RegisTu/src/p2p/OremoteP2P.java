@@ -12,11 +12,19 @@ package p2p;
 
 import blockchain.Block;
 import blockchain.BlockChain;
+import blockchain.BlockLog;
+import blockchain.MerkleCache;
+import blockchain.MerkleStore;
+import blockchain.MerkleTree;
 import blockchain.Miner;
+import blockchain.MinerListener;
+import blockchain.MinerStats;
+import blockchain.Reorg;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -30,6 +38,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import utils.Curriculum;
@@ -71,10 +80,25 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
      */
     Miner myMiner;
     
+    /**
+     * Coordinator of the mining operations started by this node.
+     */
+    MiningCoordinator miningCoordinator;
+
+    /**
+     * Assembler of the blocks from the pending transactions.
+     */
+    BlockAssembler blockAssembler;
+    
     /**
      * Thread-safe Blockchain.
      */
-    BlockChain myBlockchain;
+    volatile BlockChain myBlockchain;
+
+    /**
+     * Lock for the changes of the chain: the blocks accepted and the replacement of the chain by a synchronized one.
+     */
+    private final Object chainLock = new Object();
     
     /**
      * Node's symmetrical key.
@@ -87,9 +111,20 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
     CopyOnWriteArraySet<String> knownUsers;
     
     /**
-     * Thread-safe Array set of known trees.
+     * Store of the known merkle trees (null when the trees are derived from the blocks, see app_params.MKT_DERIVE).
      */
-    CopyOnWriteArraySet<String> knownMktrees;
+    MerkleStore merkleStore;
+
+    /**
+     * Merkle trees derived from the transactions of the blocks.
+     */
+    MerkleCache merkleCache;
+
+    /**
+     * Users served by this node (registered or logged in here) and the pruned height of the chain when each was first
+     * served. A pruned node keeps the blocks of these users.
+     */
+    ConcurrentHashMap<String, Integer> servedUsers;
 
     /**
      * Constructor of the remote object.
@@ -109,21 +144,48 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
         transactions = new CopyOnWriteArraySet<>();
         //create new miner for the object
         this.myMiner = new Miner(listener);
-        //create or load the Blockchain
-        this.myBlockchain = new BlockChain(app_params.BCHAIN_NAME);
+        //report the jobs that end without a nonce from this node
+        this.myMiner.addMinerListener(new MinerListener() {
+            @Override
+            public void onJobStopped(String message, long nonce) {
+                listener.onMessage("Mining", "nonce " + nonce + " found by another node\n");
+            }
+
+            @Override
+            public void onJobExhausted(String message) {
+                listener.onMessage("Mining", "every nonce tested without a solution\n");
+            }
+        });
+        //create the coordinator for network mining
+        this.miningCoordinator = new MiningCoordinator(this, listener);
+        //create the block assembler (started at the end)
+        this.blockAssembler = new BlockAssembler(this, listener, app_params.BLOCK_MAX_TRANSACTIONS,
+                app_params.BLOCK_MAX_BYTES, app_params.BLOCK_MAX_LATENCY);
+        //read the snapshot of the last run (null on the first run)
+        NodeSnapshot snapshot = NodeSnapshot.load(app_params.NODE_SNAPSHOT);
+        //load the Blockchain from the snapshot plus the log tail, or from its log (migrating the old chain file)
+        this.myBlockchain = openBlockchain(snapshot, listener);
         //associate the listener
         this.p2pListener = listener;
         //generate the symmetrical key
         this.simkey = SecurityUtils.generateAESKey(256);
-        //create new empty list of users
+        //open the store of the trees (its index knows every tree right away), unless the trees are derived from the blocks
+        this.merkleStore = app_params.MKT_DERIVE ? null : new MerkleStore(app_params.MKT_STORE);
+        this.merkleCache = new MerkleCache(app_params.MKT_CACHE_SIZE);
+        //create the list of users (the ones in the snapshot are known right away)
         this.knownUsers = new CopyOnWriteArraySet<>();
-        //create new empty list of trees
-        this.knownMktrees = new CopyOnWriteArraySet<>();
+        this.servedUsers = new ConcurrentHashMap<>();
+        if (snapshot != null) {
+            knownUsers.addAll(snapshot.getUsers());
+            servedUsers.putAll(snapshot.getServed());
+        }
 
         //alert the UI and update the chain
         listener.onStartRemote("Internal Server Started: \t" + address + " | Listening...\n");
         listener.onBlockchainUpdate(myBlockchain);
+        listener.onUserListUpdate(knownUsers.toArray());
 
+        //the directories are still listed in the background to catch what changed after the snapshot
         //thread to load all known users into the set
         new Thread(() -> {
             //specify the path to the "Users" directory
@@ -146,27 +208,167 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
         }).start();
         
         
-        //thread to load the known trees into set
-        new Thread(() -> {
-            //specify the path to the "Users" directory
-            File treesDir = new File("mktrees");
+        //thread to move the tree files of older versions into the store
+        if (merkleStore != null) {
+            new Thread(() -> {
+                try {
+                    int migrated = merkleStore.migrate(app_params.MKT_DIR);
+                    if (migrated > 0) {
+                        p2pListener.onMessage("Merkle store", migrated + " trees migrated from " + app_params.MKT_DIR + "\n");
+                    }
+                } catch (IOException ex) {
+                    p2pListener.onException(ex, "Merkle store migration");
+                }
+            }).start();
+        }
 
-            //get the list of directories in the "Users" directory
-            File[] treeFiles = treesDir.listFiles();
-            //check if the directory exists and is a directory
-            if (treeFiles != null) {
-                for (File treeFile : treeFiles) {
-                    //check if the current file is a directory
-                    if (treeFile.isFile()) {
-                        //add to knownUsers map
-                        knownMktrees.add(treeFile.getName().substring(0, treeFile.getName().lastIndexOf(".")));
+        //thread to prune the chain (pruned nodes), write the node snapshot (once at startup and then when something changed),
+        //make the new trees durable and report the derived trees
+        Thread snapshots = new Thread(() -> {
+            String written = null;
+            long lookups = 0;
+            while (true) {
+                if (app_params.PRUNE_KEEP > 0) {
+                    prune();
+                }
+                written = saveSnapshot(written);
+                try {
+                    //force the new trees and checkpoint the index of the store
+                    if (merkleStore != null) {
+                        merkleStore.sync();
                     }
+                } catch (IOException ex) {
+                    p2pListener.onException(ex, "Merkle store");
+                }
+                if (merkleCache.getHits() + merkleCache.getMisses() != lookups) {
+                    lookups = merkleCache.getHits() + merkleCache.getMisses();
+                    p2pListener.onMessage("Merkle cache", merkleCache + "\n");
+                }
+                try {
+                    Thread.sleep(app_params.NODE_SNAPSHOT_INTERVAL);
+                } catch (InterruptedException ex) {
+                    return;
                 }
-                //debug
-                p2pListener.onMessage("known trees = ", knownMktrees.toString());
             }
-        }).start();
+        }, "node-snapshot");
+        snapshots.setDaemon(true);
+        snapshots.start();
+
+        //start assembling blocks from the pending transactions
+        blockAssembler.start();
+
+    }
+
+    /**
+     * Method to open the node's chain. The snapshot is used when it matches the log; otherwise the whole log is read.
+     * 
+     * @param snapshot snapshot of the last run (may be null).
+     * @param listener listener to communicate with UI.
+     * @return chain with the log attached.
+     * @throws IOException 
+     */
+    private static BlockChain openBlockchain(NodeSnapshot snapshot, P2Plistener listener) throws IOException {
+        if (snapshot != null) {
+            try {
+                return BlockChain.fromSnapshot(snapshot.getChain(), app_params.BCHAIN_LOG);
+            } catch (IOException ex) {
+                listener.onMessage("Node snapshot", "ignored: " + ex.getMessage());
+            }
+        }
+        return new BlockChain(new BlockLog(app_params.BCHAIN_LOG), app_params.BCHAIN_NAME);
+    }
+
+    /**
+     * Method to drop the transactions of the blocks older than app_params.PRUNE_KEEP, except the blocks of the users served
+     * by this node. The trees of the pruned blocks are deleted too; both can still be obtained from archival peers.
+     */
+    private void prune() {
+        try {
+            List<Block> pruned = myBlockchain.prune(app_params.PRUNE_KEEP, this::isServed);
+            for (Block b : pruned) {
+                if (merkleStore != null) {
+                    merkleStore.remove(b.getMerkleRoot());
+                }
+            }
+            if (!pruned.isEmpty()) {
+                p2pListener.onMessage("Pruning", pruned.size() + " blocks pruned\n");
+            }
+        } catch (IOException ex) {
+            p2pListener.onException(ex, "Pruning");
+        }
+    }
+
+    /**
+     * Method to check if a block has curricula of (or registered by) the users served by this node.
+     * 
+     * @param block block with its transactions.
+     * @return true if the block must be kept whole.
+     */
+    private boolean isServed(Block block) {
+        for (String transaction : block.transactions()) {
+            try {
+                Curriculum c = Curriculum.fromByteArr(Base64.getDecoder().decode(transaction));
+                if (servedUsers.containsKey(c.getName()) || servedUsers.containsKey(c.getEntidade())) {
+                    return true;
+                }
+            } catch (Exception ex) {
+                //not a curriculum
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Method to check if this node has every curriculum of a user: it keeps every block, or it served the user before
+     * any block was pruned.
+     * 
+     * @param username user.
+     * @return true if the user's curricula can be searched here.
+     */
+    private boolean hasCurriculaOf(String username) {
+        return myBlockchain.getPrunedHeight() == 0 || servedUsers.getOrDefault(username, -1) == 0;
+    }
+
+    /**
+     * Method to find a peer that keeps every block (where the requests for pruned data are forwarded).
+     * 
+     * @return archival peer, or null if none is reachable.
+     */
+    private IremoteP2P archivalPeer() {
+        for (IremoteP2P peer : network) {
+            try {
+                if (peer.getPrunedHeight() == 0) {
+                    return peer;
+                }
+            } catch (RemoteException ex) {
+                //try the next one
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method to write the node snapshot if the chain, the users or the trees changed since the last one.
+     * 
+     * @param written state of the last snapshot written (null if none).
+     * @return state of the last snapshot written.
+     */
+    private String saveSnapshot(String written) {
+        BlockChain chain = myBlockchain;
+        //a cheap summary of the state, the sets only grow
+        String state = chain.getSize() + ":" + chain.getLastBlockHash() + ":" + chain.getPrunedHeight() + ":" + knownUsers.size()
+                + ":" + servedUsers.size();
+        if (state.equals(written)) {
+            return written;
+        }
+        try {
+            //the trees are known from the index of the store
+            new NodeSnapshot(chain.toSnapshot(), knownUsers, List.of(), servedUsers).save(app_params.NODE_SNAPSHOT);
+            return state;
+        } catch (IOException ex) {
+            //the chain may be changing its log (sync), try again later
+            return written;
+        }
     }
 
     //==========================
@@ -237,6 +439,8 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
         synchnonizeBlockchain();
         this.synchronizeUsers(node);
         this.synchronizeMerkles(node);
+        //give the new peer a share of the running mining operation
+        miningCoordinator.addPeer(node);
 
     }
 
@@ -285,30 +489,85 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
         for (IremoteP2P iremoteP2P : network) {
             iremoteP2P.addTransaction(data);
         }
-        //thread to add a new bloc
-        new Thread(() -> {
-            try {
-                //create the block
-                List<String> blockTransactions = this.getTransactions();
-                if (blockTransactions.size() != 4) {
-                    return;
+        //the assembler builds the block when one of its triggers fires
+        blockAssembler.onTransactions();
+    }
+
+    /**
+     * Method for mining a block with the given transactions on top of the current chain tip.
+     * If the tip changes while mining, the stale work is cancelled and the block is rebuilt on the new tip with the transactions
+     * that were not confirmed by the competing block(s), topped up from the pending transactions.
+     * 
+     * @param blockTransactions transactions of the block.
+     * @throws Exception 
+     */
+    void createBlock(List<String> blockTransactions) throws Exception {
+        while (!blockTransactions.isEmpty()) {
+            BlockChain current = myBlockchain;
+            int difficulty = current.getNextDifficulty();
+            Block b = new Block(current.getLastBlockHash(), blockTransactions, difficulty, merkleStore);
+            //mine the nonce for the block
+            long nonce = this.mine(b.getMinerData(), difficulty);
+            if (nonce > 0) {
+                //set the found nonce (give the transactions back if it does not solve the block)
+                try {
+                    b.setNonce(nonce);
+                } catch (Exception ex) {
+                    transactions.addAll(blockTransactions);
+                    throw ex;
                 }
-                Block b = new Block(myBlockchain.getLastBlockHash(), blockTransactions);
-                //remove transactions used in the block
-                this.removeTransactions(blockTransactions);
-                //mine the nonce for the block
-                int nonce = this.mine(b.getMinerData(), app_params.BCHAIN_DIFFICULTY);
-                //set the found nonce
-                b.setNonce(nonce, app_params.BCHAIN_DIFFICULTY);
-                //add block to chain
+                //add block to chain (its tree was stored when the block was created, if trees are stored)
                 this.addBlock(b);
-                //add block's tree as known merkle
-                knownMktrees.add(b.getMerkleRoot());
-
-            } catch (Exception ex) {
-                p2pListener.onException(ex, "creating block error");
+                return;
             }
-        }).start();
+            //mining failed without a new tip, give the transactions back
+            if (myBlockchain.getLastBlockHash().equals(b.getPreviousHash())) {
+                transactions.addAll(blockTransactions);
+                throw new Exception("Mining failed for block " + b.getMerkleRoot());
+            }
+            //the tip changed: keep what the new blocks did not confirm
+            blockTransactions = getUnconfirmedTransactions(blockTransactions, b.getPreviousHash());
+            //top up with the pending transactions
+            List<String> topUp = new ArrayList<>();
+            for (String pending : transactions) {
+                if (blockTransactions.size() + topUp.size() >= blockAssembler.getMaxTransactions()) {
+                    break;
+                }
+                if (!blockTransactions.contains(pending)) {
+                    topUp.add(pending);
+                }
+            }
+            if (!topUp.isEmpty()) {
+                this.removeTransactions(topUp);
+                blockTransactions.addAll(topUp);
+            }
+            p2pListener.onMessage("Mining", "rebuilding block on new tip with " + blockTransactions.size() + " transactions\n");
+        }
+    }
+
+    /**
+     * Method for filtering out the transactions confirmed by the blocks added after a given block. Only the blocks after
+     * the fork point between the given block and the chain are searched: the candidates were not confirmed up to the
+     * given block.
+     * 
+     * @param candidates transactions to filter.
+     * @param fromHash hash of the block the candidates were mined on.
+     * @return transactions not confirmed after the block.
+     */
+    private List<String> getUnconfirmedTransactions(List<String> candidates, String fromHash) {
+        BlockChain current = myBlockchain;
+        List<Block> chain = current.getChain();
+        int fork = current.getForkHeight(fromHash);
+        //a block no longer known (chain replaced by a peer's) is searched back to the deepest fork allowed
+        int from = fork >= 0 ? fork + 1 : Math.max(0, chain.size() - BlockChain.MAX_FORK_DEPTH);
+        Set<String> confirmed = new HashSet<>();
+        for (int i = from; i < chain.size(); i++) {
+            //pruned blocks have no transactions
+            confirmed.addAll(chain.get(i).getBlockTransactions());
+        }
+        List<String> unconfirmed = new ArrayList<>(candidates);
+        unconfirmed.removeAll(confirmed);
+        return unconfirmed;
     }
 
     /**
@@ -336,6 +595,7 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
         //merge transactions
         this.transactions.addAll(node.getTransactions());
         int newSize = transactions.size();
+        blockAssembler.onTransactions();
         //if the size went up
         if (currentSize < newSize) {
             p2pListener.onMessage("sinchronizeTransactions", "tamanho diferente");
@@ -390,26 +650,69 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
     @Override
     public void startMining(String msg, int zeros) throws RemoteException {
         try {
-            //start mining in this node's miner
-            myMiner.startMining(msg, zeros);
             //notify UI
             p2pListener.onStartMining(msg, zeros);
-            //relay the startmining to network
-            for (IremoteP2P iremoteP2P : network) {
-                //send only to nodes not mining
-                if (!iremoteP2P.isMining()) {
-                    //notify UI
-                    p2pListener.onStartMining(iremoteP2P.getAdress() + " mining", zeros);
-                    //start mining in peer node
-                    iremoteP2P.startMining(msg, zeros);
-                }
-            }
+            //split the nonces between this node and the idle peers
+            miningCoordinator.start(msg, zeros, network);
         } catch (Exception ex) {
             p2pListener.onException(ex, "startMining");
         }
 
     }
 
+    /**
+     * Joins a mining operation coordinated by another node, searching only the given partition of the nonce ranges.
+     * If this node is already mining the same data, only its partition is changed.
+     * 
+     * @param coordinator node coordinating the operation, notified through stopMining when a nonce is found.
+     * @param msg data to be used in mining.
+     * @param zeros difficulty.
+     * @param partition index of this node's partition.
+     * @param partitions number of partitions.
+     * @param fromRange first nonce range of the partitioning.
+     * @throws RemoteException 
+     */
+    @Override
+    public void joinMining(IremoteP2P coordinator, String msg, int zeros, int partition, int partitions, long fromRange) throws RemoteException {
+        try {
+            //busy with other data
+            if (myMiner.isMining() && !msg.equals(myMiner.getMessage())) {
+                return;
+            }
+            boolean joining = !myMiner.isMining();
+            //start (or repartition) this node's miner
+            myMiner.startMining(msg, zeros, partition, partitions, fromRange);
+            //notify UI
+            p2pListener.onStartMining("partition " + partition + "/" + partitions + " from range " + fromRange, zeros);
+            if (joining) {
+                //report the nonce to the coordinator when found
+                new Thread(() -> {
+                    try {
+                        long nonce = myMiner.waitToNonce();
+                        if (nonce > 0) {
+                            coordinator.stopMining(nonce);
+                        }
+                    } catch (Exception ex) {
+                        p2pListener.onException(ex, "joinMining");
+                    }
+                }).start();
+            }
+        } catch (Exception ex) {
+            p2pListener.onException(ex, "joinMining");
+        }
+    }
+
+    /**
+     * Gets the next nonce range the node's miner will search.
+     * 
+     * @return next nonce range index.
+     * @throws RemoteException 
+     */
+    @Override
+    public long getMiningRange() throws RemoteException {
+        return myMiner.getNextRange();
+    }
+
     /**
      * Stops the mining operation.
      * 
@@ -417,9 +720,18 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
      * @throws RemoteException 
      */
     @Override
-    public void stopMining(int nonce) throws RemoteException {
-        //stop this miner
-        myMiner.stopMining(nonce);
+    public void stopMining(long nonce) throws RemoteException {
+        //nothing to stop (late report from a peer)
+        if (!myMiner.isMining() && !miningCoordinator.isActive()) {
+            return;
+        }
+        //stale or invalid nonce (a peer still mining an older block): keep mining
+        if (!myMiner.stopMining(nonce)) {
+            p2pListener.onMessage("Mining", "ignored nonce " + nonce + " that does not solve the current block\n");
+            return;
+        }
+        //stop the coordination
+        miningCoordinator.stop();
         //relay the stop to the network
         for (IremoteP2P iremoteP2P : network) {
             //stop only those that are mining  
@@ -439,7 +751,7 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
      * @throws RemoteException 
      */
     @Override
-    public int mine(String msg, int zeros) throws RemoteException {
+    public long mine(String msg, int zeros) throws RemoteException {
         try {
             //start mining
             startMining(msg, zeros);
@@ -462,6 +774,17 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
     public boolean isMining() throws RemoteException {
         return myMiner.isMining();
     }
+
+    /**
+     * Gets a snapshot of the telemetry of the node's miner (hash rate, attempts per thread and time-to-nonce).
+     * 
+     * @return miner statistics.
+     * @throws RemoteException 
+     */
+    @Override
+    public MinerStats getMiningStats() throws RemoteException {
+        return myMiner.getStats();
+    }
     
     //==========================
     //=============== Blockchain
@@ -479,12 +802,25 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
             if (!b.isValid()) {
                 throw new RemoteException("invalid block");
             }
-            //if the block fits add it to the chain
-            if (myBlockchain.getLastBlockHash().equals(b.getPreviousHash())) {
-                myBlockchain.add(b);
-                //save the blockchain
-                myBlockchain.save(app_params.BCHAIN_NAME);
+            //blocks already known were already relayed
+            if (myBlockchain.contains(b.getCurrentHash())) {
+                return;
+            }
+            //add the block to the chain or to a side branch (only the changed blocks are written to the log)
+            Reorg reorg;
+            synchronized (chainLock) {
+                reorg = myBlockchain.accept(b);
+                if (reorg != null && reorg.isTipChanged()) {
+                    updateTransactions(reorg);
+                }
+            }
+            if (reorg != null && reorg.isTipChanged()) {
+                if (!reorg.getRemoved().isEmpty()) {
+                    p2pListener.onMessage("Reorg", reorg.getRemoved().size() + " blocks replaced by " + reorg.getAdded().size() + "\n");
+                }
                 p2pListener.onBlockchainUpdate(myBlockchain);
+                //abort mining on top of the old tip
+                onChainTipChanged();
             }
             //relay the block to network
             for (IremoteP2P iremoteP2P : network) {
@@ -496,8 +832,8 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
                     iremoteP2P.addBlock(b);
                 }
             }
-            //if does not fit, sync the chains
-            if (!myBlockchain.getLastBlockHash().equals(b.getCurrentHash())) {
+            //if the previous block is unknown, sync the chains
+            if (reorg == null) {
                 synchnonizeBlockchain();
             }
         } catch (Exception ex) {
@@ -505,6 +841,27 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
         }
     }
 
+    /**
+     * Method to update the pending transactions after the chain changed: the transactions of the removed blocks that are
+     * not in the added blocks are pending again, and the transactions of the added blocks are no longer pending.
+     * 
+     * @param reorg change of the chain.
+     */
+    private void updateTransactions(Reorg reorg) {
+        Set<String> confirmed = new HashSet<>();
+        for (Block block : reorg.getAdded()) {
+            confirmed.addAll(block.transactions());
+        }
+        for (Block block : reorg.getRemoved()) {
+            for (String transaction : block.transactions()) {
+                if (!confirmed.contains(transaction)) {
+                    transactions.add(transaction);
+                }
+            }
+        }
+        transactions.removeAll(confirmed);
+    }
+
     /**
      * Gets the sizer of the node's chain.
      * 
@@ -527,6 +884,17 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
         return myBlockchain.getLastBlockHash();
     }
 
+    /**
+     * Gets the work of the node's chain.
+     * 
+     * @return sum of the work of the blocks.
+     * @throws RemoteException 
+     */
+    @Override
+    public BigInteger getBlockchainWork() throws RemoteException {
+        return myBlockchain.getWork();
+    }
+
     /**
      * Getter for a node's Blockchain.
      * 
@@ -539,7 +907,69 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
     }
 
     /**
-     * Synchronizes the Blockchain between peers of the network.
+     * Finds the last block the node's chain has in common with another chain.
+     * 
+     * @param locator block locator of the other chain (BlockChain.getLocator).
+     * @return number of blocks in common.
+     * @throws RemoteException 
+     */
+    @Override
+    public int findForkPoint(List<String> locator) throws RemoteException {
+        return myBlockchain.findForkPoint(locator);
+    }
+
+    /**
+     * Gets the headers of the node's blocks from a given height.
+     * 
+     * @param from height of the first block.
+     * @param max maximum number of headers.
+     * @return headers (BlockChain.readHeaders).
+     * @throws RemoteException 
+     */
+    @Override
+    public byte[] getBlockHeaders(int from, int max) throws RemoteException {
+        return myBlockchain.getHeaders(from, max);
+    }
+
+    /**
+     * Gets the transactions of some of the node's blocks.
+     * 
+     * @param hashes hashes of the blocks.
+     * @return transactions of each block (null if the node does not have it).
+     * @throws RemoteException 
+     */
+    @Override
+    public List<List<String>> getBlockBodies(List<String> hashes) throws RemoteException {
+        List<List<String>> bodies = myBlockchain.getBodies(hashes);
+        //the pruned blocks are asked to a node that keeps every block
+        if (bodies.contains(null) && myBlockchain.getPrunedHeight() > 0) {
+            IremoteP2P archival = archivalPeer();
+            if (archival != null) {
+                List<List<String>> forwarded = archival.getBlockBodies(new ArrayList<>(hashes.subList(0, bodies.size())));
+                for (int i = 0; i < bodies.size() && i < forwarded.size(); i++) {
+                    if (bodies.get(i) == null) {
+                        bodies.set(i, forwarded.get(i));
+                    }
+                }
+            }
+        }
+        return bodies;
+    }
+
+    /**
+     * Gets the height below which the node may have pruned the transactions of its blocks.
+     * 
+     * @return pruned height (zero for a node that keeps every block).
+     * @throws RemoteException 
+     */
+    @Override
+    public int getPrunedHeight() throws RemoteException {
+        return myBlockchain.getPrunedHeight();
+    }
+
+    /**
+     * Synchronizes the Blockchain between peers of the network. Only the blocks after the fork point are downloaded:
+     * first their headers, which are checked, and then their transactions.
      * 
      * @throws RemoteException 
      */
@@ -547,16 +977,138 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
     public void synchnonizeBlockchain() throws RemoteException {
         //sync with the whole network
         for (IremoteP2P iremoteP2P : network) {
-            //if the chain is bigger in peer
-            if (iremoteP2P.getBlockchainSize() > myBlockchain.getSize()) {
-                BlockChain remote = iremoteP2P.getBlockchain();
-                //check if the peer chain is valid
-                if (remote.isValid()) {
-                    //update this node's blockchain
+            BlockChain remote;
+            try {
+                //if the chain has more work in peer
+                if (iremoteP2P.getBlockchainWork().compareTo(myBlockchain.getWork()) <= 0) {
+                    continue;
+                }
+                remote = downloadBlockchain(iremoteP2P, myBlockchain);
+            } catch (RemoteException | RuntimeException ex) {
+                //a peer that fails does not stop the sync with the others
+                p2pListener.onMessage("Sync", "sync with a peer failed: " + ex.getMessage() + "\n");
+                continue;
+            }
+            //check if the peer chain is valid
+            if (remote != null) {
+                Reorg reorg;
+                synchronized (chainLock) {
+                    //the blocks accepted during the download may have given this node's chain more work
+                    if (remote.getWork().compareTo(myBlockchain.getWork()) <= 0) {
+                        continue;
+                    }
+                    //rewrite the log from the fork point and update this node's blockchain
+                    try {
+                        reorg = remote.takeLog(myBlockchain);
+                    } catch (IOException ex) {
+                        throw new RemoteException("Cannot store the blockchain", ex);
+                    }
                     myBlockchain = remote;
-                    //notify UI
-                    p2pListener.onBlockchainUpdate(myBlockchain);
+                    updateTransactions(reorg);
                 }
+                if (!reorg.getRemoved().isEmpty()) {
+                    p2pListener.onMessage("Sync", reorg.getRemoved().size() + " blocks replaced by " + reorg.getAdded().size() + "\n");
+                }
+                //notify UI
+                p2pListener.onBlockchainUpdate(myBlockchain);
+                //abort mining on top of the old tip
+                onChainTipChanged();
+            }
+        }
+    }
+
+    /**
+     * Method to build the chain of a peer from this node's chain: the peer sends the headers of the blocks after the fork
+     * point, in batches up to the size of its chain, and then the transactions of those blocks are downloaded from all
+     * the known peers. Each batch of headers is checked as it arrives.
+     * 
+     * @param peer peer with a longer chain.
+     * @param current chain of this node.
+     * @return chain of the peer, or null if it is not valid or does not have more work.
+     * @throws RemoteException 
+     */
+    private BlockChain downloadBlockchain(IremoteP2P peer, BlockChain current) throws RemoteException {
+        //size and work of the peer's chain, which bound the headers asked for
+        int size = peer.getBlockchainSize();
+        BigInteger claimed = peer.getBlockchainWork();
+        //find the last block in common
+        int fork = peer.findForkPoint(current.getLocator());
+        if (fork < 0 || fork > current.getSize() || fork > size) {
+            p2pListener.onMessage("Sync", "invalid fork point " + fork + " from " + peer.getAdress() + "\n");
+            return null;
+        }
+        //work of the blocks in common
+        BigInteger work = BigInteger.ZERO;
+        for (int i = 0; i < fork; i++) {
+            work = work.add(current.get(i).getWork());
+        }
+        //download the headers after it (at most BlockChain.MAX_SYNC_HEADERS, the next sync continues from there)
+        List<Block> headers = new ArrayList<>();
+        while (fork + headers.size() < size && headers.size() < BlockChain.MAX_SYNC_HEADERS) {
+            int max = Math.min(BlockChain.HEADER_BATCH, size - fork - headers.size());
+            List<Block> batch;
+            try {
+                batch = BlockChain.readHeaders(peer.getBlockHeaders(fork + headers.size(), max));
+            } catch (IOException ex) {
+                p2pListener.onMessage("Sync", "corrupted headers from " + peer.getAdress() + "\n");
+                return null;
+            }
+            //the peer's chain may have changed meanwhile
+            if (batch.isEmpty()) {
+                break;
+            }
+            int from = headers.size();
+            headers.addAll(batch);
+            //check the proof of work, the links and the difficulty of the batch before asking for more
+            if (batch.size() > max || !current.isValidBranch(fork, headers, from)) {
+                p2pListener.onMessage("Sync", "invalid headers from " + peer.getAdress() + "\n");
+                return null;
+            }
+            //the headers cannot add up to more work than the peer's chain has
+            for (Block header : batch) {
+                work = work.add(header.getWork());
+            }
+            if (work.compareTo(claimed) > 0) {
+                p2pListener.onMessage("Sync", "headers beyond the work of " + peer.getAdress() + "\n");
+                return null;
+            }
+        }
+        //the headers were checked batch by batch on top of the fork point, only the work of the new chain is left
+        BlockChain remote = current.fork(fork, headers);
+        if (remote.getWork().compareTo(current.getWork()) <= 0) {
+            return null;
+        }
+        //download the transactions of the new blocks from every peer, each must match the merkle root of its header
+        List<IremoteP2P> peers = new ArrayList<>(network);
+        if (!peers.contains(peer)) {
+            peers.add(0, peer);
+        }
+        try {
+            if (!new BlockDownloader(headers).download(peers)) {
+                p2pListener.onMessage("Sync", "missing transactions from " + peer.getAdress());
+                return null;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return remote;
+    }
+
+    /**
+     * Method called when the tip of the chain changes. If the miner is working on a block whose previous hash is no longer
+     * the tip, the mining is cancelled so the block can be rebuilt on the new tip.
+     */
+    private void onChainTipChanged() {
+        String tip = myBlockchain.getLastBlockHash();
+        //the mined data starts with the previous hash of the block
+        if (myMiner.isMining() && !myMiner.getMessage().startsWith(tip)) {
+            try {
+                p2pListener.onMessage("Mining", "chain tip changed, aborting stale mining\n");
+                miningCoordinator.stop();
+                myMiner.cancelMining();
+            } catch (InterruptedException ex) {
+                p2pListener.onException(ex, "cancel mining");
             }
         }
     }
@@ -569,9 +1121,16 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
      */
     @Override
     public List<String> getBlockchainTransactions() throws RemoteException {
+        //a pruned node forwards the request to a node that keeps every block
+        if (myBlockchain.getPrunedHeight() > 0) {
+            IremoteP2P archival = archivalPeer();
+            if (archival != null) {
+                return archival.getBlockchainTransactions();
+            }
+        }
         ArrayList<String> allTransactions = new ArrayList<>();
         for (Block b : myBlockchain.getChain()) {
-            allTransactions.addAll(b.transactions());
+            allTransactions.addAll(b.getBlockTransactions());
         }
         return allTransactions;
     }
@@ -586,7 +1145,11 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
      * @throws RemoteException 
      */
     public Set<String> getMerkleList() throws RemoteException {
-        return knownMktrees;
+        //derived trees are not announced (getMktFile still answers them)
+        if (merkleStore == null) {
+            return new HashSet<>();
+        }
+        return new HashSet<>(merkleStore.roots());
     }
 
     /**
@@ -597,6 +1160,10 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
      */
     @Override
     public void synchronizeMerkles(IremoteP2P node) throws RemoteException {
+        //the trees are derived from the blocks, there is nothing to receive
+        if (merkleStore == null) {
+            return;
+        }
         //if the peer is empty, this node does not need to recieve nothing
         if (node.getMerkleList().isEmpty()) {
             //sync the peer with this
@@ -619,7 +1186,7 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
         //check all merkles from peer
         for (String tree : node.getMerkleList()) {
             //if this node does not have a tree known by the peer, add it to missing
-            if (!knownMktrees.contains(tree)) {
+            if (!merkleStore.contains(tree)) {
                 missingTrees.add(tree);
             }
         }
@@ -633,20 +1200,22 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
                 try {
                     //get tree file
                     missingFile = node.getMktFile(missingTree);
-                    Path folderPath = Paths.get("mktrees");
-                    if (!Files.exists(folderPath)) {
-                        Files.createDirectories(folderPath);
+                    if (missingFile == null) {
+                        continue;
                     }
-                    //define path for the file
-                    Files.write(folderPath.resolve(missingTree + ".mkt"), missingFile);
-                    //update knowntrees
-                    knownMktrees.add(missingTree);
-                } catch (IOException ex) {
+                    //only trees with the root they were asked for and nodes that match their elements are stored
+                    MerkleTree received = MerkleTree.fromBytes(missingFile);
+                    if (received.getRoot().equals(missingTree) && received.isValid()) {
+                        merkleStore.put(missingTree, missingFile);
+                    } else {
+                        p2pListener.onMessage("sync trees", "invalid tree " + missingTree + " from " + node.getAdress());
+                    }
+                } catch (IOException | ClassNotFoundException | RuntimeException ex) {
                     p2pListener.onMessage("Writing Mktree Files ", "An error occurred while trying to write a mktree file");
                 }
             }
             //notifyUI
-            p2pListener.onMessage("sync trees", knownMktrees.toString());
+            p2pListener.onMessage("sync trees", merkleStore.size() + " known trees");
         }
     }
 
@@ -660,8 +1229,20 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
     @Override
     public byte[] getMktFile(String treeRoot) throws RemoteException {
         try {
-            Path folderPath = Paths.get("mktrees");
-            return Files.readAllBytes(folderPath.resolve(treeRoot + ".mkt"));
+            byte[] tree = merkleStore == null ? null : merkleStore.getBytes(treeRoot);
+            //trees not stored are derived from their block
+            if (tree == null) {
+                MerkleTree derived = merkleCache.get(treeRoot, myBlockchain);
+                tree = derived == null ? null : derived.toBytes();
+            }
+            //the trees of pruned blocks are asked to a node that keeps every block
+            if (tree == null && myBlockchain.getPrunedHeight() > 0) {
+                IremoteP2P archival = archivalPeer();
+                if (archival != null) {
+                    return archival.getMktFile(treeRoot);
+                }
+            }
+            return tree;
         } catch (IOException ex) {
             p2pListener.onMessage("Sending Mktree Files ", "An error occurred while trying to send a mktree file");
             return null;
@@ -726,6 +1307,8 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
             newUser.save(new String(secretUser));
             //add user to knownusers
             knownUsers.add(username);
+            //this node serves the user
+            servedUsers.putIfAbsent(username, myBlockchain.getPrunedHeight());
             //notify UI
             p2pListener.onMessage("New User Registered: ", username);
             p2pListener.onUserListUpdate(knownUsers.toArray());
@@ -758,6 +1341,8 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
                 byte[] userPass = SecurityUtils.decrypt(password, simkey);
                 //try loading credentials with given pass
                 loggedUser.load(new String(userPass)); //if it fails, login is not allowed, throws Ex
+                //this node serves the user
+                servedUsers.putIfAbsent(username, myBlockchain.getPrunedHeight());
 
                 //return credentials do client
                 //get files
@@ -938,12 +1523,20 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
      */
     @Override
     public Map<String, List<String>> getUserWallet(String username, Set<String> merkleSkip) throws RemoteException {
+        //a pruned node may not have every curriculum of the user
+        boolean complete = hasCurriculaOf(username);
+        if (!complete) {
+            IremoteP2P archival = archivalPeer();
+            if (archival != null) {
+                return archival.getUserWallet(username, merkleSkip);
+            }
+        }
         //map for the update
         Map<String, List<String>> update = new HashMap<>();
         //iterate the chain
         for (Block b : myBlockchain.getChain()) {
-            //skip already known merkles
-            if (!merkleSkip.contains(b.getMerkleRoot())) { //does not known a merkle:
+            //skip already known merkles (and pruned blocks that may have curricula of the user)
+            if (!merkleSkip.contains(b.getMerkleRoot()) && (complete || !b.isPruned())) { //does not known a merkle:
                 //get merkle root
                 String root = b.getMerkleRoot();
                 //list of curricula that belongs to the user
@@ -977,6 +1570,13 @@ public class OremoteP2P extends UnicastRemoteObject implements IremoteP2P {
      * @throws RemoteException 
      */
     public List<String> searchUserCurricula(String username) throws RemoteException {
+        //a pruned node may not have every curriculum of the user
+        if (!hasCurriculaOf(username)) {
+            IremoteP2P archival = archivalPeer();
+            if (archival != null) {
+                return archival.searchUserCurricula(username);
+            }
+        }
         List<String> curricula = new ArrayList<>();
         //iterate the chain
         for (Block b : myBlockchain.getChain()) {
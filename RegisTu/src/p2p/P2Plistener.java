@@ -93,7 +93,7 @@ public interface P2Plistener {
      * @param message message associated with event.
      * @param nonce zeros used in the operation.
      */
-    public void onStopMining(String message, int nonce);
+    public void onStopMining(String message, long nonce);
 
     /**
      * Method for reporting the find of a nonce.
@@ -101,7 +101,7 @@ public interface P2Plistener {
      * @param message message associated with event.
      * @param nonce nonce that was found.
      */
-    public void onNonceFound(String message, int nonce);
+    public void onNonceFound(String message, long nonce);
     
     /**
      * Method for reporting a update in the Blockchain.
@@ -0,0 +1,197 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * This class reads the records written by BinaryWriter.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class BinaryReader {
+
+    /**
+     * Bytes of the fields.
+     */
+    private final ByteBuffer data;
+    /**
+     * Version of the record.
+     */
+    private final int version;
+
+    /**
+     * Constructor for a reader of a record.
+     *
+     * @param record bytes of the record (from the current position).
+     * @param type expected type of the record.
+     * @throws IOException if the bytes are not a record of the type.
+     */
+    public BinaryReader(ByteBuffer record, byte type) throws IOException {
+        try {
+            if (record.get() != BinaryWriter.MAGIC || record.get() != type) {
+                throw new IOException("Not a record of type " + (char) type);
+            }
+            this.data = record.slice();
+            this.version = readVarInt();
+            int length = readVarInt();
+            //the fields are limited to the length of the record
+            data.limit(data.position() + length);
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted record", ex);
+        }
+    }
+
+    /**
+     * Constructor for a reader of a record.
+     *
+     * @param record bytes of the record.
+     * @param type expected type of the record.
+     * @throws IOException if the bytes are not a record of the type.
+     */
+    public BinaryReader(byte[] record, byte type) throws IOException {
+        this(ByteBuffer.wrap(record), type);
+    }
+
+    /**
+     * Method to check if some bytes are a Java serialization stream (the format used before the binary records).
+     *
+     * @param bytes bytes.
+     * @return true for Java serialization.
+     */
+    public static boolean isSerialized(byte[] bytes) {
+        return bytes.length > 1 && bytes[0] == (byte) 0xAC && bytes[1] == (byte) 0xED;
+    }
+
+    /**
+     * Getter for the version of the record.
+     *
+     * @return version.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Method to check if the record has more fields (records of older versions end earlier).
+     *
+     * @return true if there are fields to read.
+     */
+    public boolean hasMore() {
+        return data.hasRemaining();
+    }
+
+    /**
+     * Reads an unsigned variable length integer.
+     *
+     * @return value.
+     */
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    /**
+     * Reads an unsigned variable length integer.
+     *
+     * @return value.
+     */
+    public int readVarInt() {
+        return (int) readVarLong();
+    }
+
+    /**
+     * Reads a 4 byte integer.
+     *
+     * @return value.
+     */
+    public int readInt() {
+        return data.getInt();
+    }
+
+    /**
+     * Reads an 8 byte integer.
+     *
+     * @return value.
+     */
+    public long readLong() {
+        return data.getLong();
+    }
+
+    /**
+     * Reads a length prefixed array of bytes.
+     *
+     * @return bytes.
+     */
+    public byte[] readBytes() {
+        byte[] bytes = new byte[readLength(readVarLong())];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Checks a length read from the record before its bytes are allocated.
+     *
+     * @param length length read.
+     * @return length.
+     */
+    private int readLength(long length) {
+        //a corrupted or hostile length must not allocate more than the record holds
+        if (length < 0 || length > data.remaining()) {
+            throw new IllegalStateException("Length " + length + " exceeds the record (" + data.remaining() + " bytes left)");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Reads a string.
+     *
+     * @return string (may be null).
+     */
+    public String readText() {
+        long header = readVarLong();
+        int kind = (int) (header & 3);
+        if (kind == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[readLength(header >>> 2)];
+        data.get(bytes);
+        return kind == 2 ? Base64.getEncoder().encodeToString(bytes) : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a list of strings.
+     *
+     * @return strings.
+     */
+    public List<String> readTexts() {
+        int count = readVarInt();
+        List<String> texts = new ArrayList<>(Math.min(count, data.remaining()));
+        for (int i = 0; i < count; i++) {
+            texts.add(readText());
+        }
+        return texts;
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * A. Benquerer
+ * e-mail: dev.benquerer@gmail.com
+ * GitHub: https://github.com/Benquerer
+ *
+ * Aluno 24633 @ IPT, Dec 2024.
+ *
+ * The code in this file was developed for learning and experimentation purposes.
+ *
+ */
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * This class writes the binary format used to store and send blocks, curricula and merkle trees.
+ * A record is [magic][type][version][length][fields], where version and length are varints. The fields of a type are only
+ * ever appended in newer versions, so old readers skip what they don't know (the length) and new readers check
+ * BinaryReader.hasMore() before reading the fields an old record may not have.
+ *
+ * @author A. Benquerer @ IPT
+ * @author D. Larangeira @ IPT
+ */
+public class BinaryWriter {
+
+    /**
+     * First byte of every record (Java serialization streams start with 0xAC).
+     */
+    public static final byte MAGIC = 'R';
+
+    /**
+     * Bytes written.
+     */
+    private byte[] data;
+    /**
+     * Number of bytes written.
+     */
+    private int size;
+
+    /**
+     * Constructor for an empty writer.
+     */
+    public BinaryWriter() {
+        this(256);
+    }
+
+    /**
+     * Constructor for an empty writer with a given initial capacity.
+     *
+     * @param capacity initial capacity in bytes.
+     */
+    public BinaryWriter(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    /**
+     * Writes an unsigned variable length integer (7 bits per byte).
+     *
+     * @param value value (negative values take 10 bytes).
+     * @return this writer.
+     */
+    public BinaryWriter writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            data[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[size++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Writes an unsigned variable length integer.
+     *
+     * @param value value.
+     * @return this writer.
+     */
+    public BinaryWriter writeVarInt(int value) {
+        return writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes a 4 byte integer.
+     *
+     * @param value value.
+     * @return this writer.
+     */
+    public BinaryWriter writeInt(int value) {
+        ensure(4);
+        data[size++] = (byte) (value >>> 24);
+        data[size++] = (byte) (value >>> 16);
+        data[size++] = (byte) (value >>> 8);
+        data[size++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Writes an 8 byte integer.
+     *
+     * @param value value.
+     * @return this writer.
+     */
+    public BinaryWriter writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        return writeInt((int) value);
+    }
+
+    /**
+     * Writes a length prefixed array of bytes.
+     *
+     * @param bytes bytes.
+     * @return this writer.
+     */
+    public BinaryWriter writeBytes(byte[] bytes) {
+        writeVarInt(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, data, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    /**
+     * Writes a string (null allowed). Strings in canonical Base64, like the hashes and the transactions, are written as the
+     * decoded bytes, which takes a quarter less space.
+     *
+     * @param text string.
+     * @return this writer.
+     */
+    public BinaryWriter writeText(String text) {
+        if (text == null) {
+            return writeVarInt(0);
+        }
+        byte[] bytes = base64Bytes(text);
+        int kind = 2;
+        if (bytes == null) {
+            bytes = text.getBytes(StandardCharsets.UTF_8);
+            kind = 1;
+        }
+        //length and kind (0 = null, 1 = UTF-8, 2 = Base64) in the same varint
+        writeVarLong(((long) bytes.length << 2) | kind);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, data, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    /**
+     * Writes a list of strings.
+     *
+     * @param texts strings.
+     * @return this writer.
+     */
+    public BinaryWriter writeTexts(List<String> texts) {
+        writeVarInt(texts.size());
+        for (String text : texts) {
+            writeText(text);
+        }
+        return this;
+    }
+
+    /**
+     * Getter for the bytes written (without the record header).
+     *
+     * @return bytes.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    /**
+     * Getter for a record with the bytes written as fields.
+     *
+     * @param type type of the record.
+     * @param version version of the fields.
+     * @return bytes of the record.
+     */
+    public byte[] toRecord(byte type, int version) {
+        BinaryWriter record = new BinaryWriter(size + 16);
+        record.ensure(2);
+        record.data[record.size++] = MAGIC;
+        record.data[record.size++] = type;
+        record.writeVarInt(version);
+        record.writeVarInt(size);
+        record.ensure(size);
+        System.arraycopy(data, 0, record.data, record.size, size);
+        record.size += size;
+        return record.toByteArray();
+    }
+
+    /**
+     * Method to get the bytes of a string in canonical Base64.
+     *
+     * @param text string.
+     * @return decoded bytes, or null if the string is not canonical Base64.
+     */
+    private static byte[] base64Bytes(String text) {
+        if (text.isEmpty() || text.length() % 4 != 0) {
+            return null;
+        }
+        //canonical only if the bits after the last byte are zero (otherwise it would not come back the same)
+        int padding = text.endsWith("==") ? 2 : text.endsWith("=") ? 1 : 0;
+        if (padding > 0 && (base64Value(text.charAt(text.length() - padding - 1)) & (padding == 1 ? 0x03 : 0x0F)) != 0) {
+            return null;
+        }
+        try {
+            return Base64.getDecoder().decode(text);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Method to get the value of a Base64 character.
+     *
+     * @param c character.
+     * @return value (0 to 63), or -1 for other characters.
+     */
+    private static int base64Value(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        }
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a' + 26;
+        }
+        if (c >= '0' && c <= '9') {
+            return c - '0' + 52;
+        }
+        return c == '+' ? 62 : c == '/' ? 63 : -1;
+    }
+
+    /**
+     * Method to grow the buffer.
+     *
+     * @param bytes bytes about to be written.
+     */
+    private void ensure(int bytes) {
+        if (size + bytes > data.length) {
+            data = Arrays.copyOf(data, Math.max(size + bytes, data.length * 2));
+        }
+    }
+
+}
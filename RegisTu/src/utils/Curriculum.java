@@ -11,10 +11,8 @@
 package utils;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -166,24 +164,49 @@ public class Curriculum implements Serializable{
     }
     
     /**
-     * Returns a byte[] that represents a Curriculum.
+     * Type of the binary records of curricula.
+     */
+    static final byte RECORD_TYPE = 'C';
+    /**
+     * Version of the fields written by toByteArr().
+     */
+    static final int RECORD_VERSION = 1;
+
+    /**
+     * Constructor for a curriculum read from a binary record.
+     * 
+     * @param in reader of the record.
+     */
+    private Curriculum(BinaryReader in) {
+        //version 1
+        this.pubKeyRegistrant = in.readText();
+        this.pubKeyOwner = in.readText();
+        this.desc = in.readText();
+        this.signature = in.readText();
+        this.name = in.readText();
+        this.registrant = in.readText();
+    }
+
+    /**
+     * Returns a byte[] that represents a Curriculum, in the binary record format (see {@link BinaryWriter}).
      * 
      * @return The byte[] of the serialized Curriculum.
      * @throws IOException IO problems with the streams.
      */
     public byte[] toByteArr() throws IOException{
-        //create the streams used to serialize the Curriculum
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        ObjectOutputStream outStream = new ObjectOutputStream(byteStream);
-        //writes the curriculum in the stream
-        outStream.writeObject(this);
-        outStream.flush();
-        //returns the byte[] form of the curriculum
-        return byteStream.toByteArray();
+        BinaryWriter out = new BinaryWriter();
+        //version 1
+        out.writeText(pubKeyRegistrant);
+        out.writeText(pubKeyOwner);
+        out.writeText(desc);
+        out.writeText(signature);
+        out.writeText(name);
+        out.writeText(registrant);
+        return out.toRecord(RECORD_TYPE, RECORD_VERSION);
     }
     
     /**
-     * Gets a curriculum from a byte[].
+     * Gets a curriculum from a byte[]. Both the binary records and the Java serialized curricula of older transactions are accepted.
      * 
      * @param byteArr byte[] representation of the curriculum.
      * @return a Curriculum object that was read from the byte[].
@@ -191,11 +214,20 @@ public class Curriculum implements Serializable{
      * @throws ClassNotFoundException Cant cast object to curriculum.
      */
     public static Curriculum fromByteArr(byte[] byteArr) throws IOException, ClassNotFoundException{
-        //open streams with the byte array
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(byteArr);
-        ObjectInputStream inStream = new ObjectInputStream(byteStream);
-        //read the curriculum in the stream and return
-        return (Curriculum) inStream.readObject();
+        //curricula created before the binary format
+        if (BinaryReader.isSerialized(byteArr)) {
+            //open streams with the byte array
+            ByteArrayInputStream byteStream = new ByteArrayInputStream(byteArr);
+            ObjectInputStream inStream = new ObjectInputStream(byteStream);
+            //read the curriculum in the stream and return
+            return (Curriculum) inStream.readObject();
+        }
+        BinaryReader in = new BinaryReader(byteArr, RECORD_TYPE);
+        try {
+            return new Curriculum(in);
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted curriculum", ex);
+        }
     }
 
     /**
@@ -29,11 +29,63 @@ public class app_params {
      * Constant for the BlockChain's file
      */
     public static final String BCHAIN_NAME = "bchain.bc";
-    
+
+    /**
+     * Constant for the BlockChain's log directory
+     */
+    public static final String BCHAIN_LOG = "bchain";
+
+    /**
+     * Constant for the MerkleStore's file (every merkle tree of the node)
+     */
+    public static final String MKT_STORE = "mktrees.log";
+
+    /**
+     * Derive the merkle trees from the blocks instead of storing and synchronizing them (system property
+     * "registu.mkt.derive")
+     */
+    public static final boolean MKT_DERIVE = Boolean.getBoolean("registu.mkt.derive");
+
+    /**
+     * Maximum number of derived merkle trees kept in memory (system property "registu.mkt.cache")
+     */
+    public static final int MKT_CACHE_SIZE = Integer.getInteger("registu.mkt.cache", 1024);
+
+    /**
+     * Constant for the directory of the merkle trees of older versions (one .mkt file per tree, migrated to MKT_STORE)
+     */
+    public static final String MKT_DIR = "mktrees";
+
+    /**
+     * Constant for the node's snapshot file (chain headers and known users)
+     */
+    public static final String NODE_SNAPSHOT = "node.snapshot";
+
+    /**
+     * Interval between node snapshots, in milliseconds
+     */
+    public static final long NODE_SNAPSHOT_INTERVAL = 60_000;
+
+    /**
+     * Number of recent blocks whose transactions are kept by a pruned node (system property "registu.prune"; 0 keeps
+     * every block, as an archival node)
+     */
+    public static final int PRUNE_KEEP = Integer.getInteger("registu.prune", 0);
+
+    /**
+     * Maximum number of transactions in a block (system property "registu.block.transactions")
+     */
+    public static final int BLOCK_MAX_TRANSACTIONS = Integer.getInteger("registu.block.transactions", 4);
+
+    /**
+     * Maximum number of bytes of the transactions of a block (system property "registu.block.bytes")
+     */
+    public static final int BLOCK_MAX_BYTES = Integer.getInteger("registu.block.bytes", 256 * 1024);
+
     /**
-     * Constant to define the BlockChain's difficulty
+     * Maximum time, in milliseconds, a transaction waits to be assembled in a block (system property "registu.block.latency")
      */
-    public static final int BCHAIN_DIFFICULTY = 4;
+    public static final long BLOCK_MAX_LATENCY = Long.getLong("registu.block.latency", 60_000);
     
 //    /**
 //     * Hashing algorithm to be used